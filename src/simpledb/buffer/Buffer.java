@@ -1,5 +1,6 @@
 package simpledb.buffer;
 
+import java.util.concurrent.atomic.AtomicInteger;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
 
@@ -9,22 +10,55 @@ import simpledb.log.LogMgr;
  * such as the associated disk block,
  * the number of times the buffer has been pinned,
  * whether its contents have been modified,
- * and if so, the id and lsn of the modifying transaction.
+ * and if so, the id and lsn of the modifying transaction,
+ * the lsn of the earliest logged modification since
+ * the buffer was last written,
+ * and whether any of the modifications were not logged.
+ * <p>
+ * The pin count is atomic, so that pinning and unpinning
+ * need no lock of their own.
+ * While the buffer manager is replacing or reading the buffer's block,
+ * the buffer is marked as having I/O in progress,
+ * and clients that pin it wait until the I/O completes.
  * @author Edward Sciore
  */
 public class Buffer {
    private FileMgr fm;
    private LogMgr lm;
+   private BufferMgr bm = null;
    private Page contents;
-   private BlockId blk = null;
-   private int pins = 0;
-   private int txnum = -1;
-   private int lsn = -1;
+   private volatile BlockId blk = null;
+   private AtomicInteger pins = new AtomicInteger();
+   private volatile int txnum = -1;
+   private long lsn = -1;
+   private long recLSN = -1;
+   private boolean unlogged = false;
+   private boolean io = false;
+   private volatile boolean readAheadMark = false;
+   private volatile boolean retired = false;
+   private Object ioLock = new Object();
 
-   public Buffer(FileMgr fm, LogMgr lm) {
+   /**
+    * Creates a buffer that holds its blocks in the specified page.
+    * The buffer manager carves the pages of the whole pool
+    * out of a single {@link PageArena}.
+    * @param contents the page holding the buffer's contents
+    */
+   public Buffer(FileMgr fm, LogMgr lm, Page contents) {
       this.fm = fm;
       this.lm = lm;
-      contents = new Page(fm.blockSize());
+      this.contents = contents;
+   }
+
+   /**
+    * Creates a buffer of the pool of the specified buffer manager,
+    * which is told when a transaction first modifies the buffer.
+    * @param contents the page holding the buffer's contents
+    * @param bm the buffer manager
+    */
+   Buffer(FileMgr fm, LogMgr lm, Page contents, BufferMgr bm) {
+      this(fm, lm, contents);
+      this.bm = bm;
    }
    
    public Page contents() {
@@ -40,10 +74,17 @@ public class Buffer {
       return blk;
    }
 
-   public void setModified(int txnum, int lsn) {
+   public synchronized void setModified(int txnum, long lsn) {
+      if (bm != null && txnum >= 0 && txnum != this.txnum)
+         bm.modified(this, txnum);
       this.txnum = txnum;
-      if (lsn >= 0)
+      if (lsn >= 0) {
          this.lsn = lsn;
+         if (recLSN < 0)
+            recLSN = lsn;
+      }
+      else if (txnum >= 0)
+         unlogged = true;
    }
 
    /**
@@ -52,7 +93,7 @@ public class Buffer {
     * @return true if the buffer is pinned
     */
    public boolean isPinned() {
-      return pins > 0;
+      return pins.get() > 0;
    }
    
    public int modifyingTx() {
@@ -60,41 +101,151 @@ public class Buffer {
    }
 
    /**
-    * Reads the contents of the specified block into
-    * the contents of the buffer.
-    * If the buffer was dirty, then its previous contents
-    * are first written to disk.
+    * Assigns the buffer to the specified block,
+    * or to no block if it is null.
+    * The caller is responsible for flushing the old contents
+    * and for filling the page.
     * @param b a reference to the data block
     */
-   void assignToBlock(BlockId b) {
-      flush();
+   void setBlock(BlockId b) {
       blk = b;
+      readAheadMark = false;
+   }
+
+   /**
+    * Marks the buffer as the point at which a sequential reader
+    * should trigger the read-ahead of the next window of blocks.
+    */
+   void markReadAhead() {
+      readAheadMark = true;
+   }
+
+   /**
+    * Clears the read-ahead mark.
+    * @return true if the buffer was marked
+    */
+   boolean takeReadAheadMark() {
+      if (!readAheadMark)
+         return false;
+      readAheadMark = false;
+      return true;
+   }
+
+   /**
+    * Reads the contents of the buffer's block into its page.
+    */
+   void read() {
       fm.read(blk, contents);
-      pins = 0;
    }
    
    /**
     * Write the buffer to its disk block if it is dirty.
     */
-   void flush() {
+   synchronized void flush() {
       if (txnum >= 0) {
          lm.flush(lsn);
          fm.write(blk, contents);
          txnum = -1;
+         recLSN = -1;
+         unlogged = false;
       }
    }
 
+   /**
+    * Returns the LSN of the earliest logged modification
+    * that has not been written to disk, or -1 if there is none.
+    * Recovery must redo the log from this record on
+    * to restore the buffer's contents.
+    * @return the buffer's recovery LSN
+    */
+   synchronized long recoveryLSN() {
+      return recLSN;
+   }
+
+   /**
+    * Write the buffer to its disk block if it holds
+    * modifications that were not logged,
+    * and so could not be redone from the log.
+    * @return true if the buffer was written
+    */
+   synchronized boolean flushUnlogged() {
+      if (!unlogged)
+         return false;
+      flush();
+      return true;
+   }
+
    /**
     * Increase the buffer's pin count.
+    * @return true if the buffer was unpinned
     */
-   void pin() {
-      pins++;
+   boolean pin() {
+      return pins.getAndIncrement() == 0;
    }
 
    /**
     * Decrease the buffer's pin count.
+    * @return true if the buffer is now unpinned
+    */
+   boolean unpin() {
+      return pins.decrementAndGet() == 0;
+   }
+
+   /**
+    * Pins the buffer only if it is unpinned.
+    * @return true if the buffer was pinned
+    */
+   boolean claim() {
+      return pins.compareAndSet(0, 1);
+   }
+
+   int pinCount() {
+      return pins.get();
+   }
+
+   /**
+    * Marks the buffer as removed from the pool.
+    * The buffer stays claimed forever, so it is never reused.
+    */
+   void retire() {
+      retired = true;
+   }
+
+   boolean isRetired() {
+      return retired;
+   }
+
+   /**
+    * Marks the buffer as having I/O in progress.
+    */
+   void startIO() {
+      synchronized (ioLock) {
+         io = true;
+      }
+   }
+
+   /**
+    * Marks the I/O as complete and wakes the clients waiting for it.
     */
-   void unpin() {
-      pins--;
+   void endIO() {
+      synchronized (ioLock) {
+         io = false;
+         ioLock.notifyAll();
+      }
+   }
+
+   /**
+    * Waits until there is no I/O in progress on the buffer.
+    */
+   void waitForIO() {
+      synchronized (ioLock) {
+         try {
+            while (io)
+               ioLock.wait();
+         }
+         catch(InterruptedException e) {
+            throw new BufferAbortException();
+         }
+      }
    }
 }
\ No newline at end of file
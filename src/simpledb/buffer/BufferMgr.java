@@ -1,61 +1,492 @@
 package simpledb.buffer;
 
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.*;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
 
 /**
  * Manages the pinning and unpinning of buffers to blocks.
+ * The page table that maps each resident block to its buffer
+ * is split into stripes, each with its own lock,
+ * and pin counts are atomic,
+ * so that concurrent pins of different blocks do not contend.
+ * <p>
+ * A {@link ReplacementPolicy} chooses the unpinned buffer
+ * to replace when a block is not in the pool.
+ * The policy is guarded by a separate replacement lock,
+ * which only misses acquire. Pins and unpins are queued
+ * as events, and the queue is drained into the policy
+ * whenever the lock is held.
+ * A client that finds no unpinned buffer waits on a condition
+ * of the replacement lock, and each buffer that becomes
+ * unpinned wakes one waiting client.
+ * <p>
+ * The buffers modified by each transaction are tracked,
+ * so that committing a transaction touches only its own buffers.
+ * <p>
+ * If a warm list is enabled, the blocks resident in the pool
+ * are saved to a file at each checkpoint and at shutdown,
+ * and they are read back in after the next restart.
+ * <p>
+ * An optional {@link VictimCache} keeps compressed images
+ * of replaced blocks, and is checked before the disk on a miss.
+ * <p>
+ * An optional {@link PageCleaner} thread writes dirty,
+ * unpinned buffers in the background.
+ * <p>
+ * If read-ahead is enabled, blocks that are about to be read
+ * in order are read in the background into unpinned buffers.
+ * A file is read ahead when a client hints that it is scanning it,
+ * or when two consecutive blocks of the file are missed.
+ * Blocks are read in windows; a mark on the buffer in the middle
+ * of each window schedules the next window when it is pinned.
+ * <p>
+ * A large sequential scan can pin its blocks through a
+ * {@link BufferRing}, so that it replaces only the buffers
+ * of its ring rather than the whole pool.
+ * <p>
+ * Under the no-force policy, a committing transaction's buffers
+ * are not flushed, except for those holding modifications that
+ * were not logged.
+ * <p>
+ * The pool can be resized while it is in use.
+ * The array of buffers is replaced as a whole, so that
+ * the threads that scan it need no lock.
  * @author Edward Sciore
  *
  */
 public class BufferMgr {
-   private Buffer[] bufferpool;
-   private int numAvailable;
+   private volatile Buffer[] bufferpool;
+   private List<Map<BlockId,Buffer>> pageTable = new ArrayList<>();
+   private ReplacementPolicy policy;
+   private Queue<Runnable> events = new ConcurrentLinkedQueue<>();
+   private AtomicInteger pending = new AtomicInteger();
+   private Lock replacementLock = new ReentrantLock();
+   private Condition bufferFree = replacementLock.newCondition();
+   private AtomicInteger waiters = new AtomicInteger();
+   private FileMgr fm;
+   private LogMgr lm;
+   private AtomicInteger numAvailable;
+   private ConcurrentMap<Integer,Set<Buffer>> dirtyBuffers = new ConcurrentHashMap<>();
+   private volatile boolean noForce = false;
+   private PageCleaner cleaner = null;
+   private VictimCache victimCache = null;
+   private ExecutorService prefetcher = null;
+   private int readAheadBlocks;
+   private ConcurrentMap<String,Integer> readAheadEnd = new ConcurrentHashMap<>();
    private static final long MAX_TIME = 10000; // 10 seconds
+   private static final int STRIPES = 64;
+   private static final int DRAIN_THRESHOLD = 64;
+   private static final int RING_SIZE = 16;
+   private static final int MIN_RING_SIZE = 4;
+   private static final int WARM_BATCH = 64;
+   private String warmfile = null;
+   private List<BlockId> warmlist = null;
    
    /**
     * Creates a buffer manager having the specified number 
     * of buffer slots.
     * This constructor depends on a {@link FileMgr} and
     * {@link simpledb.log.LogMgr LogMgr} object.
+    * The pages of all the buffers are slices of one off-heap arena.
+    * Buffers are replaced in least-recently-used order.
     * @param numbuffs the number of buffer slots to allocate
     */
    public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs) {
+      this(fm, lm, numbuffs, Replacement.LRU);
+   }
+
+   /**
+    * Creates a buffer manager that uses the specified
+    * replacement policy.
+    * @param numbuffs the number of buffer slots to allocate
+    * @param replacement the replacement policy
+    */
+   public BufferMgr(FileMgr fm, LogMgr lm, int numbuffs, Replacement replacement) {
+      this.fm = fm;
+      this.lm = lm;
+      policy = replacement.newPolicy(numbuffs);
       bufferpool = new Buffer[numbuffs];
-      numAvailable = numbuffs;
-      for (int i=0; i<numbuffs; i++)
-         bufferpool[i] = new Buffer(fm, lm);
+      numAvailable = new AtomicInteger(numbuffs);
+      PageArena arena = new PageArena(fm.blockSize(), numbuffs, fm.ioAlignment());
+      for (int i=0; i<numbuffs; i++) {
+         bufferpool[i] = new Buffer(fm, lm, arena.page(i), this);
+         policy.add(bufferpool[i]);
+      }
+      for (int i=0; i<STRIPES; i++)
+         pageTable.add(new HashMap<>());
    }
    
+   /**
+    * Starts a background thread that keeps the specified
+    * fraction of the pool clean, by writing dirty unpinned buffers.
+    * @param target the fraction of the pool to keep clean
+    * @param interval the time between cleaning rounds, in milliseconds
+    */
+   public void startCleaner(double target, long interval) {
+      cleaner = new PageCleaner(this, target, interval);
+      cleaner.start();
+   }
+
+   /**
+    * Chooses whether a committing transaction's logged modifications
+    * are left in the pool rather than forced to disk.
+    * @param noforce true for the no-force policy
+    * @see #flushCommitted(int)
+    */
+   public void setNoForce(boolean noforce) {
+      noForce = noforce;
+   }
+
+   /**
+    * Adds a compressed cache of replaced blocks behind the pool.
+    * @param budget the maximum number of bytes of compressed images
+    */
+   public void setVictimCache(long budget) {
+      victimCache = new VictimCache(fm.blockSize(), budget);
+   }
+
+   /**
+    * Starts a background thread that reads blocks ahead
+    * of sequential readers.
+    * The window is limited to a quarter of the pool,
+    * so that read-ahead cannot flush the whole pool.
+    * @param window the number of blocks to read ahead
+    */
+   public void startReadAhead(int window) {
+      readAheadBlocks = Math.max(1, Math.min(window, bufferpool.length / 4));
+      prefetcher = Executors.newSingleThreadExecutor(r -> {
+         Thread t = new Thread(r, "read-ahead");
+         t.setDaemon(true);
+         return t;
+      });
+   }
+
+   /**
+    * Hints that the blocks of a file are about to be read in order,
+    * starting at the specified block.
+    * If read-ahead is enabled, the first window of blocks
+    * is read in the background.
+    * @param blk a reference to the first block to be read
+    */
+   public void readAhead(BlockId blk) {
+      readAhead(blk, null);
+   }
+
+   /**
+    * Hints that the blocks of a file are about to be read in order
+    * through the specified ring.
+    * The blocks are read ahead into the ring's buffers,
+    * in windows of at most half the ring.
+    * @param blk a reference to the first block to be read
+    * @param ring the scan's ring, or null
+    */
+   public void readAhead(BlockId blk, BufferRing ring) {
+      if (prefetcher != null)
+         scheduleReadAhead(blk.fileName(), blk.number(), ring);
+   }
+
+   /**
+    * Enables the warm list, which is kept in the specified file
+    * of the database directory.
+    * The list saved before the last shutdown, if any,
+    * is read now and is loaded into the pool by {@link #warmUp()}.
+    * @param filename the name of the warm list file
+    */
+   public void setWarmList(String filename) {
+      warmfile = filename;
+      byte[] bytes = fm.readFile(filename);
+      if (bytes == null)
+         return;
+      warmlist = new ArrayList<>();
+      try {
+         DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+         int numfiles = in.readInt();
+         for (int i=0; i<numfiles; i++) {
+            String name = in.readUTF();
+            int count = in.readInt();
+            int blknum = 0;
+            for (int j=0; j<count; j++) {
+               blknum += in.readInt();
+               warmlist.add(new BlockId(name, blknum));
+            }
+         }
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read warm list " + filename);
+      }
+   }
+
+   /**
+    * Saves the list of blocks resident in the pool to the warm list file.
+    * The list is grouped by file, and the block numbers of each file
+    * are sorted and stored as differences.
+    * Temporary files are omitted, since they do not survive a restart.
+    * Nothing is saved if the warm list is not enabled, or if the pool
+    * has not yet been warmed from the previous list.
+    */
+   public void saveWarmList() {
+      if (warmfile == null || warmlist != null)
+         return;
+      Map<String,List<Integer>> resident = new TreeMap<>();
+      for (Buffer buff : bufferpool) {
+         BlockId blk = buff.block();
+         if (blk != null && !fm.isTemp(blk.fileName()))
+            resident.computeIfAbsent(blk.fileName(), f -> new ArrayList<>()).add(blk.number());
+      }
+      try {
+         ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+         DataOutputStream out = new DataOutputStream(bytes);
+         out.writeInt(resident.size());
+         for (Map.Entry<String,List<Integer>> e : resident.entrySet()) {
+            List<Integer> blknums = e.getValue();
+            Collections.sort(blknums);
+            out.writeUTF(e.getKey());
+            out.writeInt(blknums.size());
+            int prev = 0;
+            for (int blknum : blknums) {
+               out.writeInt(blknum - prev);
+               prev = blknum;
+            }
+         }
+         fm.writeFile(warmfile, bytes.toByteArray());
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot write warm list " + warmfile);
+      }
+   }
+
+   /**
+    * Reads the blocks of the saved warm list into unpinned buffers.
+    * The blocks are read in file and block order, in batches,
+    * so that runs of adjacent blocks are read together.
+    * Blocks that no longer exist are skipped.
+    * This method should be called after recovery,
+    * before the database is used.
+    */
+   public void warmUp() {
+      if (warmlist == null)
+         return;
+      List<BlockId> batch = new ArrayList<>();
+      int loaded = 0;
+      for (BlockId blk : warmlist) {
+         if (loaded == bufferpool.length)
+            break;
+         if (blk.number() >= fm.length(blk.fileName()))
+            continue;
+         batch.add(blk);
+         loaded++;
+         if (batch.size() == WARM_BATCH) {
+            preload(batch, null, null);
+            batch.clear();
+         }
+      }
+      preload(batch, null, null);
+      warmlist = null;
+   }
+
+   /**
+    * Returns a ring for a scan that will read or write
+    * the specified number of blocks in order,
+    * or null if the scan should use the whole pool.
+    * A scan gets a ring only if it covers more than
+    * a quarter of the pool, and the pool is large enough
+    * for a ring of at least MIN_RING_SIZE buffers to be
+    * a quarter of it; a smaller ring would make a scan
+    * wait on its own read-ahead and recycle buffers
+    * that a temporary table is still writing.
+    * So the default pool of 8 buffers never creates a ring.
+    * @param numblocks the number of blocks the scan will access
+    * @return a new ring, or null
+    */
+   public BufferRing newRing(int numblocks) {
+      int size = Math.min(RING_SIZE, bufferpool.length / 4);
+      if (size < MIN_RING_SIZE || numblocks <= bufferpool.length / 4)
+         return null;
+      return new BufferRing(size);
+   }
+
+   /**
+    * Returns the number of buffers in the pool.
+    * @return the size of the pool
+    */
+   public int size() {
+      return bufferpool.length;
+   }
+
+   /**
+    * Changes the number of buffers in the pool while it is in use.
+    * Added buffers are available immediately.
+    * The pool shrinks by choosing unpinned buffers as if
+    * to replace them; each is flushed, its block is removed
+    * from the pool, and the buffer is discarded.
+    * If not enough buffers become unpinned within a fixed
+    * time period, then a {@link BufferAbortException} is thrown,
+    * and the pool keeps the size it had reached.
+    * @param numbuffs the new number of buffers
+    */
+   public synchronized void resize(int numbuffs) {
+      if (numbuffs < 1)
+         throw new RuntimeException("buffer pool needs at least one buffer");
+      if (numbuffs > bufferpool.length)
+         grow(numbuffs - bufferpool.length);
+      long timestamp = System.currentTimeMillis();
+      while (bufferpool.length > numbuffs) {
+         Buffer buff = claimVictim();
+         if (buff != null) {
+            if (unmapVictim(buff))
+               discard(buff);
+         }
+         else if (waitingTooLong(timestamp))
+            throw new BufferAbortException();
+         else
+            waitForUnpinned(timestamp);
+      }
+   }
+
    /**
     * Returns the number of available (i.e. unpinned) buffers.
     * @return the number of available buffers
     */
-   public synchronized int available() {
-      return numAvailable;
+   public int available() {
+      return numAvailable.get();
+   }
+
+   /**
+    * Returns the fraction of pins that found their block
+    * already in the pool.
+    * @return the hit ratio of the replacement policy
+    */
+   public double hitRatio() {
+      replacementLock.lock();
+      try {
+         drainEvents();
+         return policy.hitRatio();
+      }
+      finally {
+         replacementLock.unlock();
+      }
    }
    
    /**
-    * Flushes the dirty buffers modified by the specified transaction.
+    * Flushes the dirty buffers modified by the specified transaction,
+    * and then syncs the database files so that the transaction's
+    * modifications are durable, including those written
+    * earlier when its buffers were replaced.
+    * Only the buffers that the transaction modified are examined.
+    * @param txnum the transaction's id number
+    */
+   public void flushAll(int txnum) {
+      Set<Buffer> buffs = dirtyBuffers.remove(txnum);
+      if (buffs != null)
+         for (Buffer buff : buffs)
+            if (buff.modifyingTx() == txnum)
+               buff.flush();
+      fm.syncAll();
+   }
+
+   /**
+    * Flushes what a committing transaction must make durable
+    * before its commit record is written.
+    * Under the force policy, that is every buffer it modified,
+    * as in {@link #flushAll(int)}.
+    * Under the no-force policy, only the buffers holding
+    * modifications that were not logged are flushed;
+    * the rest stay in the pool until they are replaced or cleaned,
+    * since recovery can redo them from the log.
     * @param txnum the transaction's id number
     */
-   public synchronized void flushAll(int txnum) {
-      for (Buffer buff : bufferpool)
-         if (buff.modifyingTx() == txnum)
-         buff.flush();
+   public void flushCommitted(int txnum) {
+      if (!noForce) {
+         flushAll(txnum);
+         return;
+      }
+      Set<Buffer> buffs = dirtyBuffers.remove(txnum);
+      boolean flushed = false;
+      if (buffs != null)
+         for (Buffer buff : buffs)
+            if (buff.modifyingTx() == txnum && buff.flushUnlogged())
+               flushed = true;
+      if (flushed)
+         fm.syncAll();
+   }
+
+   /**
+    * Flushes the unpinned buffers whose earliest unwritten
+    * logged modification precedes the specified LSN.
+    * A checkpoint calls this method so that recovery
+    * need not redo the log from too far back.
+    * @param lsn the LSN before which modifications are flushed
+    */
+   public void flushOlderThan(long lsn) {
+      for (Buffer buff : bufferpool) {
+         long reclsn = buff.recoveryLSN();
+         if (reclsn < 0 || reclsn >= lsn || buff.isPinned() || !claim(buff))
+            continue;
+         try {
+            buff.flush();
+         }
+         finally {
+            releaseVictim(buff);
+         }
+      }
+   }
+
+   /**
+    * Returns the dirty page table, which maps the block of
+    * each buffer holding unwritten logged modifications
+    * to the buffer's recovery LSN.
+    * The database files are then synced, so that
+    * the blocks missing from the table are durable.
+    * @return the dirty page table
+    */
+   public Map<BlockId,Long> dirtyPages() {
+      Map<BlockId,Long> dpt = new HashMap<>();
+      for (Buffer buff : bufferpool) {
+         long reclsn = buff.recoveryLSN();
+         BlockId blk = buff.block();
+         if (reclsn >= 0 && blk != null)
+            dpt.merge(blk, reclsn, Math::min);
+      }
+      fm.syncAll();
+      return dpt;
+   }
+
+   /**
+    * Records that the specified transaction has modified a buffer
+    * that it had not modified since the buffer was last written.
+    * The buffer may since have been written, or modified by
+    * another transaction, so the record is checked when it is used.
+    * @param buff the modified buffer
+    * @param txnum the transaction's id number
+    */
+   void modified(Buffer buff, int txnum) {
+      dirtyBuffers.computeIfAbsent(txnum, t -> ConcurrentHashMap.newKeySet()).add(buff);
    }
    
    
    /**
     * Unpins the specified data buffer. If its pin count
-    * goes to zero, then notify any waiting threads.
+    * goes to zero, then wake a waiting thread.
     * @param buff the buffer to be unpinned
     */
-   public synchronized void unpin(Buffer buff) {
-      buff.unpin();
-      if (!buff.isPinned()) {
-         numAvailable++;
-         notifyAll();
+   public void unpin(Buffer buff) {
+      if (buff.unpin()) {
+         recordEvent(buff, () -> policy.unpinned(buff));
+         numAvailable.incrementAndGet();
+         if (waiters.get() > 0) {
+            replacementLock.lock();
+            try {
+               bufferFree.signal();
+            }
+            finally {
+               replacementLock.unlock();
+            }
+         }
       }
    }
    
@@ -67,26 +498,151 @@ public class BufferMgr {
     * @param blk a reference to a disk block
     * @return the buffer pinned to that block
     */
-   public synchronized Buffer pin(BlockId blk) {
-      try {
-         long timestamp = System.currentTimeMillis();
-         Buffer buff = tryToPin(blk);
-         while (buff == null && !waitingTooLong(timestamp)) {
-            wait(MAX_TIME);
-            buff = tryToPin(blk);
-         }
-         if (buff == null)
-            throw new BufferAbortException();
-         return buff;
+   public Buffer pin(BlockId blk) {
+      return pin(blk, null);
+   }
+
+   /**
+    * Pins a buffer to the specified block as in {@link #pin(BlockId)}.
+    * If the block is not in the pool, it is read into
+    * a buffer of the specified ring.
+    * @param blk a reference to a disk block
+    * @param ring the ring to take a buffer from, or null
+    * @return the buffer pinned to that block
+    */
+   public Buffer pin(BlockId blk, BufferRing ring) {
+      long timestamp = System.currentTimeMillis();
+      Buffer buff = tryToPin(blk, ring);
+      while (buff == null && !waitingTooLong(timestamp)) {
+         waitForUnpinned(timestamp);
+         buff = tryToPin(blk, ring);
       }
-      catch(InterruptedException e) {
+      if (buff == null)
          throw new BufferAbortException();
-      }
+      return buff;
    }  
    
+   /**
+    * Pins buffers to the specified blocks.
+    * The blocks that are not already in the pool
+    * are read from disk in a single batch.
+    * If the pool runs out of unpinned buffers part way through,
+    * the remaining blocks are pinned one at a time,
+    * potentially waiting as in {@link #pin(BlockId)}.
+    * @param blks references to distinct disk blocks
+    * @return the buffers pinned to those blocks, in the same order
+    */
+   public List<Buffer> pinAll(List<BlockId> blks) {
+      List<Buffer> result = new ArrayList<>();
+      List<Buffer> loading = new ArrayList<>();
+      List<BlockId> toread = new ArrayList<>();
+      List<Page> pages = new ArrayList<>();
+      while (result.size() < blks.size()) {
+         BlockId blk = blks.get(result.size());
+         Buffer buff = pinExisting(blk);
+         if (buff == null) {
+            buff = claimVictim();
+            if (buff == null)
+               break;
+            if (!assignVictim(buff, blk))
+               continue;
+            loading.add(buff);
+            if (!takeCached(buff, blk)) {
+               toread.add(blk);
+               pages.add(buff.contents());
+            }
+         }
+         result.add(buff);
+      }
+      try {
+         fm.readBatch(toread, pages);
+      }
+      catch(RuntimeException e) {
+         for (Buffer buff : result)
+            if (loading.contains(buff))
+               abandonLoad(buff, buff.block());
+            else
+               unpin(buff);
+         throw e;
+      }
+      for (int i=0; i<result.size(); i++) {
+         Buffer buff = result.get(i);
+         BlockId blk = blks.get(i);
+         if (loading.contains(buff))
+            finishLoad(buff, blk);
+         else if (!awaitIO(buff, blk, null))
+            result.set(i, pin(blk));
+      }
+      for (int i=result.size(); i<blks.size(); i++)
+         result.add(pin(blks.get(i)));
+      return result;
+   }
+
+   /**
+    * Writes dirty, unpinned buffers until the specified fraction
+    * of the pool is clean.
+    * The buffers are written in block order, so that
+    * the blocks of a file are written sequentially.
+    * Each buffer is claimed while it is written, so that
+    * no client can modify it during the write;
+    * the write-ahead rule is enforced by {@link Buffer#flush()}.
+    * @param target the fraction of the pool to keep clean
+    */
+   void clean(double target) {
+      Comparator<BlockId> blockorder = Comparator.comparing(BlockId::fileName)
+                                                 .thenComparingInt(BlockId::number);
+      TreeMap<BlockId,Buffer> dirty = new TreeMap<>(blockorder);
+      int numclean = 0;
+      for (Buffer buff : bufferpool) {
+         BlockId blk = buff.block();
+         if (buff.modifyingTx() < 0)
+            numclean++;
+         else if (!buff.isPinned() && blk != null)
+            dirty.put(blk, buff);
+      }
+      int needed = (int) Math.ceil(target * bufferpool.length) - numclean;
+      for (Buffer buff : dirty.values()) {
+         if (needed <= 0)
+            return;
+         if (!claim(buff))
+            continue;
+         if (buff.modifyingTx() >= 0) {
+            buff.flush();
+            needed--;
+         }
+         releaseVictim(buff);
+      }
+   }
+
    private boolean waitingTooLong(long starttime) {
       return System.currentTimeMillis() - starttime > MAX_TIME;
    }
+
+   /**
+    * Waits until a buffer becomes unpinned, or until the
+    * waiting period that began at the specified time is over.
+    * Waiting clients are woken one at a time;
+    * a client that is woken while more buffers are available
+    * passes the wakeup on.
+    */
+   private void waitForUnpinned(long starttime) {
+      replacementLock.lock();
+      waiters.incrementAndGet();
+      try {
+         long remaining = MAX_TIME - (System.currentTimeMillis() - starttime);
+         if (numAvailable.get() == 0 && remaining > 0)
+            bufferFree.await(remaining, TimeUnit.MILLISECONDS);
+         if (numAvailable.get() > 1)
+            bufferFree.signal();
+      }
+      catch(InterruptedException e) {
+         throw new BufferAbortException();
+      }
+      finally {
+         waiters.decrementAndGet();
+         replacementLock.unlock();
+      }
+   }
    
    /**
     * Tries to pin a buffer to the specified block. 
@@ -95,35 +651,396 @@ public class BufferMgr {
     * otherwise, an unpinned buffer from the pool is chosen.
     * Returns a null value if there are no available buffers.
     * @param blk a reference to a disk block
+    * @param ring the ring to take a buffer from, or null
     * @return the pinned buffer
     */
-   private Buffer tryToPin(BlockId blk) {
-      Buffer buff = findExistingBuffer(blk);
-      if (buff == null) {
-         buff = chooseUnpinnedBuffer();
+   private Buffer tryToPin(BlockId blk, BufferRing ring) {
+      while (true) {
+         Buffer buff = pinExisting(blk);
+         if (buff != null) {
+            if (awaitIO(buff, blk, ring))
+               return buff;
+            continue;
+         }
+         buff = (ring == null) ? claimVictim() : claimRingVictim(ring);
          if (buff == null)
             return null;
-         buff.assignToBlock(blk);
+         if (!assignVictim(buff, blk))
+            continue;
+         try {
+            if (!takeCached(buff, blk))
+               buff.read();
+         }
+         catch(RuntimeException e) {
+            abandonLoad(buff, blk);
+            throw e;
+         }
+         finishLoad(buff, blk);
+         if (prefetcher != null)
+            detectSequential(blk, ring);
+         return buff;
       }
-      if (!buff.isPinned())
-         numAvailable--;
-      buff.pin();
-      return buff;
    }
-   
+
    private Buffer findExistingBuffer(BlockId blk) {
-      for (Buffer buff : bufferpool) {
-         BlockId b = buff.block();
-         if (b != null && b.equals(blk))
-            return buff;
+      Map<BlockId,Buffer> table = stripe(blk);
+      synchronized (table) {
+         return table.get(blk);
       }
-      return null;
    }
-   
-   private Buffer chooseUnpinnedBuffer() {
-      for (Buffer buff : bufferpool)
-         if (!buff.isPinned())
+
+   /**
+    * Pins the buffer assigned to the specified block, if any,
+    * without waiting for I/O in progress on it.
+    */
+   private Buffer pinExisting(BlockId blk) {
+      Map<BlockId,Buffer> table = stripe(blk);
+      synchronized (table) {
+         Buffer buff = table.get(blk);
+         if (buff != null && buff.pin())
+            numAvailable.decrementAndGet();
          return buff;
-      return null;
+      }
+   }
+
+   /**
+    * Waits for the I/O in progress on a buffer found in the page table.
+    * Returns true if the buffer still holds the specified block,
+    * and otherwise unpins it.
+    */
+   private boolean awaitIO(Buffer buff, BlockId blk, BufferRing ring) {
+      try {
+         buff.waitForIO();
+      }
+      catch(BufferAbortException e) {
+         unpin(buff);
+         throw e;
+      }
+      if (!blk.equals(buff.block())) {
+         unpin(buff);
+         return false;
+      }
+      recordEvent(buff, () -> policy.pinned(buff, blk, true));
+      if (buff.takeReadAheadMark()) {
+         Integer end = readAheadEnd.get(blk.fileName());
+         if (end != null)
+            scheduleReadAhead(blk.fileName(), end + 1, ring);
+      }
+      return true;
+   }
+
+   /**
+    * Starts reading ahead if the specified missed block
+    * follows the last block read from its file.
+    */
+   private void detectSequential(BlockId blk, BufferRing ring) {
+      Integer prev = readAheadEnd.put(blk.fileName(), blk.number());
+      if (prev != null && prev == blk.number() - 1)
+         scheduleReadAhead(blk.fileName(), blk.number() + 1, ring);
+   }
+
+   private void scheduleReadAhead(String filename, int start, BufferRing ring) {
+      int window = (ring == null) ? readAheadBlocks : Math.min(readAheadBlocks, ring.size() / 2);
+      int end = Math.min(start + window, fm.length(filename)) - 1;
+      if (end < start)
+         return;
+      readAheadEnd.put(filename, end);
+      int mark = start + (end - start + 1) / 2;
+      prefetcher.execute(() -> prefetch(filename, start, end, mark, ring));
+   }
+
+   /**
+    * Reads the specified blocks of a file into unpinned buffers,
+    * in a single batch.
+    * Blocks already in the pool are skipped, and reading stops
+    * early if there is no unpinned buffer to replace.
+    * @param mark the number of the block whose buffer triggers the next window
+    * @param ring the ring to take buffers from, or null
+    */
+   private void prefetch(String filename, int start, int end, int mark, BufferRing ring) {
+      List<BlockId> blks = new ArrayList<>();
+      for (int blknum=start; blknum<=end; blknum++)
+         blks.add(new BlockId(filename, blknum));
+      preload(blks, new BlockId(filename, mark), ring);
+   }
+
+   /**
+    * Reads the specified blocks into unpinned buffers, in a single batch.
+    * Blocks already in the pool are skipped, and reading stops
+    * early if there is no unpinned buffer to replace.
+    * @param blks the blocks to read
+    * @param mark the block whose buffer triggers the next read-ahead window, or null
+    * @param ring the ring to take buffers from, or null
+    */
+   private void preload(List<BlockId> blks, BlockId mark, BufferRing ring) {
+      List<Buffer> loading = new ArrayList<>();
+      List<BlockId> toread = new ArrayList<>();
+      List<Page> pages = new ArrayList<>();
+      int i = 0;
+      while (i < blks.size()) {
+         BlockId blk = blks.get(i);
+         Buffer buff = findExistingBuffer(blk);
+         if (buff != null) {
+            if (blk.equals(mark))
+               buff.markReadAhead();
+            i++;
+            continue;
+         }
+         buff = (ring == null) ? claimVictim() : claimRingVictim(ring);
+         if (buff == null)
+            break;
+         if (!assignVictim(buff, blk))
+            continue;
+         loading.add(buff);
+         if (!takeCached(buff, blk)) {
+            toread.add(blk);
+            pages.add(buff.contents());
+         }
+         i++;
+      }
+      try {
+         fm.readBatch(toread, pages);
+      }
+      catch(RuntimeException e) {
+         for (Buffer buff : loading)
+            abandonLoad(buff, buff.block());
+         return;
+      }
+      for (Buffer buff : loading) {
+         BlockId blk = buff.block();
+         if (blk.equals(mark))
+            buff.markReadAhead();
+         recordEvent(buff, () -> policy.prefetched(buff, blk));
+         buff.endIO();
+         unpin(buff);
+      }
+   }
+
+   /**
+    * Asks the replacement policy for an unpinned buffer
+    * and pins it, marking it as having I/O in progress.
+    * Returns null if all buffers are pinned.
+    */
+   private Buffer claimVictim() {
+      replacementLock.lock();
+      try {
+         drainEvents();
+         for (int i=0; i<bufferpool.length; i++) {
+            Buffer buff = policy.chooseUnpinnedBuffer();
+            if (buff == null)
+               return null;
+            if (claim(buff))
+               return buff;
+         }
+         return null;
+      }
+      finally {
+         replacementLock.unlock();
+      }
+   }
+
+   /**
+    * Claims the buffer in the ring's current slot if it is unpinned,
+    * and otherwise claims a victim from the pool to replace it in the ring.
+    * Returns null if all buffers are pinned.
+    */
+   private Buffer claimRingVictim(BufferRing ring) {
+      synchronized (ring) {
+         Buffer buff = ring.current();
+         if (buff == null || !claim(buff)) {
+            buff = claimVictim();
+            if (buff == null)
+               return null;
+         }
+         ring.advance(buff);
+         return buff;
+      }
+   }
+
+   /**
+    * Pins the buffer if it is still unpinned.
+    * A buffer assigned to a block is claimed under its stripe's lock,
+    * so that no client can pin it before it is marked.
+    */
+   private boolean claim(Buffer buff) {
+      BlockId blk = buff.block();
+      if (blk == null) {
+         if (!buff.claim())
+            return false;
+         numAvailable.decrementAndGet();
+         if (buff.block() != null) {
+            // assigned by another client since it was read
+            unpin(buff);
+            return false;
+         }
+         buff.startIO();
+         return true;
+      }
+      Map<BlockId,Buffer> table = stripe(blk);
+      synchronized (table) {
+         if (buff.block() != blk || !buff.claim())
+            return false;
+         numAvailable.decrementAndGet();
+         buff.startIO();
+         return true;
+      }
+   }
+
+   /**
+    * Flushes a claimed buffer and moves it in the page table
+    * to the specified block.
+    * Returns false, releasing the buffer, if another client
+    * pinned it during the flush or if the block was
+    * assigned to another buffer meanwhile.
+    */
+   private boolean assignVictim(Buffer buff, BlockId blk) {
+      if (!unmapVictim(buff))
+         return false;
+      Map<BlockId,Buffer> table = stripe(blk);
+      synchronized (table) {
+         if (!table.containsKey(blk)) {
+            buff.setBlock(blk);
+            table.put(blk, buff);
+            return true;
+         }
+      }
+      buff.setBlock(null);
+      releaseVictim(buff);
+      return false;
+   }
+
+   /**
+    * Flushes a claimed buffer and removes its block from the page table.
+    * Returns false, releasing the buffer, if another client
+    * pinned it during the flush.
+    */
+   private boolean unmapVictim(Buffer buff) {
+      BlockId old = buff.block();
+      if (cleaner != null && buff.modifyingTx() >= 0)
+         cleaner.wake();
+      buff.flush();
+      if (old == null)
+         return true;
+      // cache the old image while the block is still mapped,
+      // so that no client can read the block before it is cached
+      if (victimCache != null && buff.modifyingTx() < 0)
+         victimCache.put(old, buff.contents());
+      Map<BlockId,Buffer> table = stripe(old);
+      synchronized (table) {
+         if (buff.pinCount() == 1 && buff.modifyingTx() < 0) {
+            table.remove(old);
+            return true;
+         }
+      }
+      releaseVictim(buff);
+      return false;
+   }
+
+   /**
+    * Adds the specified number of buffers to the pool,
+    * with pages from a new arena, and wakes the waiting clients.
+    */
+   private void grow(int count) {
+      PageArena arena = new PageArena(fm.blockSize(), count, fm.ioAlignment());
+      Buffer[] pool = Arrays.copyOf(bufferpool, bufferpool.length + count);
+      replacementLock.lock();
+      try {
+         for (int i=0; i<count; i++) {
+            Buffer buff = new Buffer(fm, lm, arena.page(i), this);
+            pool[bufferpool.length + i] = buff;
+            policy.add(buff);
+         }
+         bufferpool = pool;
+         numAvailable.addAndGet(count);
+         bufferFree.signalAll();
+      }
+      finally {
+         replacementLock.unlock();
+      }
+   }
+
+   /**
+    * Removes a claimed buffer that holds no block from the pool.
+    * The buffer is never unpinned, so the count of
+    * available buffers stays reduced by it,
+    * and events already queued for it are ignored.
+    */
+   private void discard(Buffer buff) {
+      buff.setBlock(null);
+      buff.retire();
+      replacementLock.lock();
+      try {
+         policy.remove(buff);
+      }
+      finally {
+         replacementLock.unlock();
+      }
+      buff.endIO();
+      List<Buffer> pool = new ArrayList<>(Arrays.asList(bufferpool));
+      pool.remove(buff);
+      bufferpool = pool.toArray(new Buffer[0]);
+   }
+
+   /**
+    * Fills a buffer that is being loaded from the victim cache,
+    * if the cache holds an image of the block.
+    */
+   private boolean takeCached(Buffer buff, BlockId blk) {
+      return victimCache != null && victimCache.take(blk, buff.contents());
+   }
+
+   private void finishLoad(Buffer buff, BlockId blk) {
+      recordEvent(buff, () -> policy.pinned(buff, blk, false));
+      buff.endIO();
+   }
+
+   /**
+    * Removes a buffer whose block could not be read from the page table.
+    */
+   private void abandonLoad(Buffer buff, BlockId blk) {
+      Map<BlockId,Buffer> table = stripe(blk);
+      synchronized (table) {
+         table.remove(blk);
+      }
+      buff.setBlock(null);
+      releaseVictim(buff);
+   }
+
+   private void releaseVictim(Buffer buff) {
+      buff.endIO();
+      unpin(buff);
+   }
+
+   /**
+    * Queues a pin or unpin of the specified buffer for the replacement policy.
+    * The event is dropped if the buffer has been discarded by then.
+    * If many events are queued and the replacement lock is free,
+    * they are drained immediately.
+    */
+   private void recordEvent(Buffer buff, Runnable event) {
+      events.add(() -> {
+         if (!buff.isRetired())
+            event.run();
+      });
+      if (pending.incrementAndGet() >= DRAIN_THRESHOLD && replacementLock.tryLock()) {
+         try {
+            drainEvents();
+         }
+         finally {
+            replacementLock.unlock();
+         }
+      }
+   }
+
+   private void drainEvents() {
+      Runnable event;
+      while ((event = events.poll()) != null) {
+         pending.decrementAndGet();
+         event.run();
+      }
+   }
+
+   private Map<BlockId,Buffer> stripe(BlockId blk) {
+      return pageTable.get((blk.hashCode() & 0x7fffffff) % STRIPES);
    }
 }
@@ -0,0 +1,52 @@
+package simpledb.buffer;
+
+/**
+ * A small ring of buffers that a large sequential scan
+ * recycles in place of taking victims from the whole pool.
+ * When the scan misses, the buffer manager reuses the buffer
+ * in the ring's current slot if it is unpinned,
+ * and otherwise takes a victim from the pool to fill the slot.
+ * A scan over a table larger than the pool therefore
+ * replaces only the buffers of its ring,
+ * and the rest of the pool keeps its hot blocks.
+ * <p>
+ * The buffers of a ring are not reserved:
+ * they remain in the pool and can be pinned, or replaced,
+ * by other clients.
+ */
+public class BufferRing {
+   private Buffer[] buffers;
+   private int current = 0;
+
+   /**
+    * Creates an empty ring with the specified number of slots.
+    * @param size the number of slots
+    */
+   BufferRing(int size) {
+      buffers = new Buffer[size];
+   }
+
+   /**
+    * Returns the number of slots in the ring.
+    * @return the size of the ring
+    */
+   public int size() {
+      return buffers.length;
+   }
+
+   /**
+    * Returns the buffer in the current slot, or null if it is empty.
+    */
+   Buffer current() {
+      return buffers[current];
+   }
+
+   /**
+    * Puts the buffer in the current slot and moves to the next slot.
+    * @param buff the buffer now used by the ring
+    */
+   void advance(Buffer buff) {
+      buffers[current] = buff;
+      current = (current + 1) % buffers.length;
+   }
+}
@@ -0,0 +1,72 @@
+package simpledb.buffer;
+
+import java.util.*;
+import simpledb.file.BlockId;
+
+/**
+ * The clock replacement policy.
+ * Each buffer has a reference bit that is set when it is pinned.
+ * To choose a victim, a hand sweeps the pool circularly,
+ * clearing the reference bits it passes,
+ * and stops at the first unpinned buffer whose bit is already clear.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+   private List<Buffer> buffers = new ArrayList<>();
+   private Map<Buffer,Boolean> referenced = new IdentityHashMap<>();
+   private int hand = 0;
+   private long hits = 0, misses = 0;
+
+   public void add(Buffer buff) {
+      buffers.add(buff);
+      referenced.put(buff, false);
+   }
+
+   public void remove(Buffer buff) {
+      int i = buffers.indexOf(buff);
+      buffers.remove(i);
+      referenced.remove(buff);
+      if (i < hand)
+         hand--;
+      if (hand >= buffers.size())
+         hand = 0;
+   }
+
+   public void pinned(Buffer buff, BlockId blk, boolean hit) {
+      if (hit)
+         hits++;
+      else
+         misses++;
+      referenced.put(buff, true);
+   }
+
+   public void prefetched(Buffer buff, BlockId blk) {
+      referenced.put(buff, true);
+   }
+
+   public void unpinned(Buffer buff) {
+   }
+
+   /**
+    * Sweeps the pool at most twice: once to clear the
+    * reference bits, and once more to find a buffer
+    * whose bit was cleared by the first sweep.
+    */
+   public Buffer chooseUnpinnedBuffer() {
+      for (int i=0; i<2*buffers.size(); i++) {
+         Buffer buff = buffers.get(hand);
+         hand = (hand + 1) % buffers.size();
+         if (buff.isPinned())
+            continue;
+         if (referenced.get(buff))
+            referenced.put(buff, false);
+         else
+            return buff;
+      }
+      return null;
+   }
+
+   public double hitRatio() {
+      long pins = hits + misses;
+      return pins == 0 ? 0 : (double) hits / pins;
+   }
+}
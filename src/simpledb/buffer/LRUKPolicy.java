@@ -0,0 +1,154 @@
+package simpledb.buffer;
+
+import java.util.*;
+import simpledb.file.BlockId;
+
+/**
+ * The LRU-K replacement policy.
+ * The policy remembers the times of the last K references
+ * to each block, and replaces the unpinned buffer whose
+ * K-th most recent reference is the oldest.
+ * A block that has been referenced fewer than K times
+ * is replaced first, least recently used first,
+ * so blocks read once by a scan do not displace
+ * blocks that are used repeatedly.
+ * <p>
+ * Pinning a buffer that is already pinned is a correlated
+ * reference and does not count.
+ * The reference history of a replaced block is retained
+ * for a while, so that a block that is soon read again
+ * is not treated as new.
+ * A block read ahead of its use is treated as referenced
+ * when it is read, and the first pin replaces that reference.
+ */
+public class LRUKPolicy implements ReplacementPolicy {
+   private int k;
+   private int retainsize;
+   private long clock = 0;
+   private int nextid = 0;
+   private Map<Buffer,History> histories = new IdentityHashMap<>();
+   private Map<BlockId,long[]> retained = new LinkedHashMap<>();
+   private TreeSet<Buffer> unpinned = new TreeSet<>(this::compare);
+   private long hits = 0, misses = 0;
+
+   /**
+    * The reference history of the block held in a buffer.
+    * Times are 0 where the block has fewer references.
+    */
+   private static class History {
+      int id;
+      BlockId blk;
+      long[] times;
+      boolean prefetched = false;
+
+      History(int id, int k) {
+         this.id = id;
+         times = new long[k];
+      }
+   }
+
+   /**
+    * @param k the number of references to remember per block
+    * @param retainsize the number of replaced blocks whose history is retained
+    */
+   public LRUKPolicy(int k, int retainsize) {
+      this.k = k;
+      this.retainsize = retainsize;
+   }
+
+   public void add(Buffer buff) {
+      histories.put(buff, new History(nextid++, k));
+      unpinned.add(buff);
+   }
+
+   public void remove(Buffer buff) {
+      unpinned.remove(buff);
+      History h = histories.remove(buff);
+      if (h.blk != null)
+         retain(h.blk, h.times);
+   }
+
+   public void pinned(Buffer buff, BlockId blk, boolean hit) {
+      History h = histories.get(buff);
+      boolean wasunpinned = unpinned.remove(buff);
+      if (hit) {
+         hits++;
+         if (!wasunpinned)
+            return;
+         if (h.prefetched) {
+            h.prefetched = false;
+            h.times[0] = ++clock;
+            return;
+         }
+      }
+      else {
+         misses++;
+         assign(h, blk);
+      }
+      System.arraycopy(h.times, 0, h.times, 1, k-1);
+      h.times[0] = ++clock;
+   }
+
+   public void prefetched(Buffer buff, BlockId blk) {
+      History h = histories.get(buff);
+      unpinned.remove(buff);
+      assign(h, blk);
+      System.arraycopy(h.times, 0, h.times, 1, k-1);
+      h.times[0] = ++clock;
+      h.prefetched = true;
+      unpinned.add(buff);
+   }
+
+   public void unpinned(Buffer buff) {
+      unpinned.add(buff);
+   }
+
+   public Buffer chooseUnpinnedBuffer() {
+      for (Buffer buff : unpinned)
+         if (!buff.isPinned())
+            return buff;
+      return null;
+   }
+
+   public double hitRatio() {
+      long pins = hits + misses;
+      return pins == 0 ? 0 : (double) hits / pins;
+   }
+
+   /**
+    * Moves the history of a buffer's old block to the retained
+    * histories, and loads the retained history of its new block.
+    */
+   private void assign(History h, BlockId blk) {
+      if (h.blk != null)
+         retain(h.blk, h.times);
+      long[] times = retained.remove(blk);
+      h.times = (times != null) ? times : new long[k];
+      h.blk = blk;
+      h.prefetched = false;
+   }
+
+   private void retain(BlockId blk, long[] times) {
+      retained.put(blk, times);
+      if (retained.size() > retainsize) {
+         Iterator<BlockId> iter = retained.keySet().iterator();
+         iter.next();
+         iter.remove();
+      }
+   }
+
+   /**
+    * Orders buffers by the time of their K-th most recent reference,
+    * then by their most recent reference.
+    */
+   private int compare(Buffer b1, Buffer b2) {
+      History h1 = histories.get(b1);
+      History h2 = histories.get(b2);
+      int cmp = Long.compare(h1.times[k-1], h2.times[k-1]);
+      if (cmp == 0)
+         cmp = Long.compare(h1.times[0], h2.times[0]);
+      if (cmp == 0)
+         cmp = Integer.compare(h1.id, h2.id);
+      return cmp;
+   }
+}
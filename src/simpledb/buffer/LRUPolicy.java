@@ -0,0 +1,52 @@
+package simpledb.buffer;
+
+import java.util.*;
+import simpledb.file.BlockId;
+
+/**
+ * The least-recently-used replacement policy.
+ * The unpinned buffers are kept in a list
+ * in the order in which they became unpinned,
+ * and the victim is the first buffer in the list.
+ */
+public class LRUPolicy implements ReplacementPolicy {
+   private Set<Buffer> unpinned = new LinkedHashSet<>();
+   private long hits = 0, misses = 0;
+
+   public void add(Buffer buff) {
+      unpinned.add(buff);
+   }
+
+   public void remove(Buffer buff) {
+      unpinned.remove(buff);
+   }
+
+   public void pinned(Buffer buff, BlockId blk, boolean hit) {
+      if (hit)
+         hits++;
+      else
+         misses++;
+      unpinned.remove(buff);
+   }
+
+   public void prefetched(Buffer buff, BlockId blk) {
+      unpinned.remove(buff);
+      unpinned.add(buff);
+   }
+
+   public void unpinned(Buffer buff) {
+      unpinned.add(buff);
+   }
+
+   public Buffer chooseUnpinnedBuffer() {
+      for (Buffer buff : unpinned)
+         if (!buff.isPinned())
+            return buff;
+      return null;
+   }
+
+   public double hitRatio() {
+      long pins = hits + misses;
+      return pins == 0 ? 0 : (double) hits / pins;
+   }
+}
@@ -0,0 +1,54 @@
+package simpledb.buffer;
+
+/**
+ * A background thread that writes dirty, unpinned buffers to disk,
+ * so that a client that needs to replace a buffer
+ * seldom has to write it first.
+ * Each round, the cleaner asks the buffer manager to bring the
+ * fraction of clean buffers in the pool up to a target.
+ * Rounds run at a fixed interval, and also as soon as
+ * a client had to write a dirty buffer itself.
+ */
+class PageCleaner extends Thread {
+   private BufferMgr bm;
+   private double target;
+   private long interval;
+   private boolean requested = false;
+
+   /**
+    * @param bm the buffer manager
+    * @param target the fraction of the pool to keep clean
+    * @param interval the time between rounds, in milliseconds
+    */
+   PageCleaner(BufferMgr bm, double target, long interval) {
+      super("page cleaner");
+      this.bm = bm;
+      this.target = target;
+      this.interval = interval;
+      setDaemon(true);
+   }
+
+   /**
+    * Asks the cleaner to start a round now.
+    */
+   synchronized void wake() {
+      requested = true;
+      notify();
+   }
+
+   public void run() {
+      try {
+         while (true) {
+            bm.clean(target);
+            synchronized (this) {
+               if (!requested)
+                  wait(interval);
+               requested = false;
+            }
+         }
+      }
+      catch(InterruptedException e) {
+         // the cleaner has been stopped
+      }
+   }
+}
@@ -0,0 +1,50 @@
+package simpledb.buffer;
+
+/**
+ * The buffer replacement policies that the buffer manager can use.
+ */
+public enum Replacement {
+   /**
+    * Replace the buffer that has been unpinned the longest.
+    */
+   LRU,
+
+   /**
+    * Sweep the pool with a clock hand, giving each recently
+    * pinned buffer a second chance before replacing it.
+    * Approximates LRU at a lower cost per pin.
+    */
+   CLOCK,
+
+   /**
+    * Replace the buffer whose second most recent pin is the oldest,
+    * so that a block read once by a scan does not displace
+    * blocks that are used repeatedly.
+    */
+   LRU_2,
+
+   /**
+    * Keep blocks pinned only once in a small FIFO queue,
+    * and promote them to the main LRU queue only if they
+    * are pinned again soon after being replaced.
+    */
+   TWO_Q;
+
+   /**
+    * Creates a new instance of the policy.
+    * @param numbuffs the number of buffers in the pool
+    * @return the policy
+    */
+   public ReplacementPolicy newPolicy(int numbuffs) {
+      switch (this) {
+         case CLOCK:
+            return new ClockPolicy();
+         case LRU_2:
+            return new LRUKPolicy(2, numbuffs);
+         case TWO_Q:
+            return new TwoQPolicy();
+         default:
+            return new LRUPolicy();
+      }
+   }
+}
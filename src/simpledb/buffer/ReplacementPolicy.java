@@ -0,0 +1,78 @@
+package simpledb.buffer;
+
+import simpledb.file.BlockId;
+
+/**
+ * The strategy used by the buffer manager to choose
+ * which unpinned buffer to replace.
+ * The buffer manager tells the policy about every buffer
+ * in the pool and about each pin and unpin,
+ * and asks it for a victim when a block is not in the pool.
+ * The methods are called while the buffer manager holds
+ * its replacement lock, so implementations need no
+ * synchronization of their own.
+ * Pins and unpins are reported some time after they happen,
+ * so a policy must check {@link Buffer#isPinned()}
+ * before choosing a buffer.
+ * <p>
+ * Each policy also counts how many pins were satisfied
+ * by a buffer already in the pool,
+ * so that policies can be compared on a workload.
+ */
+public interface ReplacementPolicy {
+
+   /**
+    * Adds an unpinned buffer to the set managed by the policy.
+    * @param buff the buffer
+    */
+   void add(Buffer buff);
+
+   /**
+    * Removes a buffer from the set managed by the policy,
+    * when the pool shrinks.
+    * The buffer is pinned by the buffer manager and holds no block,
+    * and it is not reported again.
+    * @param buff the buffer
+    */
+   void remove(Buffer buff);
+
+   /**
+    * Records that the specified buffer has been pinned.
+    * A miss means that the buffer was just chosen as a victim
+    * and assigned to a new block.
+    * @param buff the pinned buffer
+    * @param blk the block the buffer was pinned to
+    * @param hit true if the block was already in the pool
+    */
+   void pinned(Buffer buff, BlockId blk, boolean hit);
+
+   /**
+    * Records that the specified buffer was assigned to a block
+    * that was read ahead of its use.
+    * The buffer is unpinned, and the read does not count as a miss.
+    * @param buff the buffer
+    * @param blk the block that was read into it
+    */
+   void prefetched(Buffer buff, BlockId blk);
+
+   /**
+    * Records that the pin count of the specified buffer went to zero,
+    * making it a candidate for replacement.
+    * @param buff the unpinned buffer
+    */
+   void unpinned(Buffer buff);
+
+   /**
+    * Chooses an unpinned buffer to be replaced.
+    * The buffer manager assigns the buffer to a new block
+    * and later reports it as pinned.
+    * @return the buffer to replace, or null if all buffers are pinned
+    */
+   Buffer chooseUnpinnedBuffer();
+
+   /**
+    * Returns the fraction of pins that found their block in the pool.
+    * @return the hit ratio, or 0 if there have been no pins
+    */
+   double hitRatio();
+}
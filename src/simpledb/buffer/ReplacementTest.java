@@ -0,0 +1,29 @@
+package simpledb.buffer;
+
+import java.util.Random;
+import simpledb.file.*;
+import simpledb.server.SimpleDB;
+
+public class ReplacementTest {
+   public static void main(String[] args) {
+      SimpleDB db = new SimpleDB("replacementtest", 400, 8);
+      FileMgr fm = db.fileMgr();
+      for (int i=0; i<100; i++)
+         fm.append("testfile");
+
+      // A small hot set of blocks, interrupted by sequential scans.
+      for (Replacement r : Replacement.values()) {
+         BufferMgr bm = new BufferMgr(fm, db.logMgr(), 8, r);
+         Random rand = new Random(0);
+         for (int i=0; i<2000; i++) {
+            BlockId blk;
+            if (i % 200 < 50)
+               blk = new BlockId("testfile", 10 + i % 50);
+            else
+               blk = new BlockId("testfile", rand.nextInt(10));
+            bm.unpin(bm.pin(blk));
+         }
+         System.out.printf("%-6s hit ratio %.3f%n", r, bm.hitRatio());
+      }
+   }
+}
@@ -0,0 +1,113 @@
+package simpledb.buffer;
+
+import java.util.*;
+import simpledb.file.BlockId;
+
+/**
+ * The 2Q replacement policy.
+ * A block read into the pool first goes into a FIFO queue, A1in.
+ * When it is replaced from A1in, its id is remembered
+ * in a queue of ghost entries, A1out.
+ * Only a block that is read again while it is remembered in A1out
+ * goes into the main queue, Am, which is managed as LRU.
+ * Blocks referenced once, such as those read by a scan,
+ * therefore pass through A1in without displacing the hot blocks in Am.
+ * <p>
+ * A1in is the preferred source of victims once it holds
+ * a quarter of the pool,
+ * and A1out remembers as many blocks as half the pool.
+ * Both limits follow the number of buffers added to the policy,
+ * so they change with the size of the pool.
+ */
+public class TwoQPolicy implements ReplacementPolicy {
+   private int numbuffs = 0;
+   private Set<Buffer> free = new LinkedHashSet<>();
+   private Set<Buffer> a1in = new LinkedHashSet<>();
+   private Set<Buffer> am = new LinkedHashSet<>();
+   private Set<BlockId> a1out = new LinkedHashSet<>();
+   private Map<Buffer,BlockId> blocks = new IdentityHashMap<>();
+   private long hits = 0, misses = 0;
+
+   public void add(Buffer buff) {
+      free.add(buff);
+      numbuffs++;
+   }
+
+   public void remove(Buffer buff) {
+      free.remove(buff);
+      am.remove(buff);
+      if (a1in.remove(buff))
+         forget(blocks.get(buff));
+      blocks.remove(buff);
+      numbuffs--;
+   }
+
+   public void pinned(Buffer buff, BlockId blk, boolean hit) {
+      if (hit) {
+         hits++;
+         if (am.remove(buff))
+            am.add(buff);
+         return;
+      }
+      misses++;
+      assign(buff, blk);
+   }
+
+   public void prefetched(Buffer buff, BlockId blk) {
+      assign(buff, blk);
+   }
+
+   public void unpinned(Buffer buff) {
+   }
+
+   public Buffer chooseUnpinnedBuffer() {
+      Buffer buff = firstUnpinned(free);
+      if (buff == null && a1in.size() >= Math.max(1, numbuffs / 4))
+         buff = firstUnpinned(a1in);
+      if (buff == null)
+         buff = firstUnpinned(am);
+      if (buff == null)
+         buff = firstUnpinned(a1in);
+      return buff;
+   }
+
+   public double hitRatio() {
+      long pins = hits + misses;
+      return pins == 0 ? 0 : (double) hits / pins;
+   }
+
+   /**
+    * Moves a buffer that was assigned to a new block
+    * into the queue for that block.
+    */
+   private void assign(Buffer buff, BlockId blk) {
+      free.remove(buff);
+      am.remove(buff);
+      if (a1in.remove(buff))
+         forget(blocks.get(buff));
+      blocks.put(buff, blk);
+      if (a1out.remove(blk))
+         am.add(buff);
+      else
+         a1in.add(buff);
+   }
+
+   /**
+    * Remembers a block replaced from A1in in the ghost queue.
+    */
+   private void forget(BlockId blk) {
+      a1out.add(blk);
+      while (a1out.size() > Math.max(1, numbuffs / 2)) {
+         Iterator<BlockId> iter = a1out.iterator();
+         iter.next();
+         iter.remove();
+      }
+   }
+
+   private Buffer firstUnpinned(Set<Buffer> queue) {
+      for (Buffer buff : queue)
+         if (!buff.isPinned())
+            return buff;
+      return null;
+   }
+}
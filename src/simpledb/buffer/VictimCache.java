@@ -0,0 +1,113 @@
+package simpledb.buffer;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.zip.*;
+import simpledb.file.*;
+
+/**
+ * A second-tier cache of compressed page images.
+ * When the buffer manager replaces a clean buffer,
+ * the image of its old block is compressed into the cache,
+ * and a later miss on that block is satisfied by
+ * decompressing the image instead of reading the disk.
+ * Pages compress well because record slots are padded
+ * to the maximum length of their fields.
+ * <p>
+ * The cache holds at most a fixed number of bytes of
+ * compressed images, and evicts the least recently stored
+ * image when it is full.
+ * Images that do not compress to less than three quarters
+ * of a block are not kept.
+ * An image is removed when its block is read back into the pool,
+ * and each time a block leaves the pool its latest image
+ * replaces any earlier one, so the image found on a miss
+ * is always current.
+ */
+public class VictimCache {
+   private int blocksize;
+   private long budget;
+   private long used = 0;
+   private Map<BlockId,byte[]> images = new LinkedHashMap<>(16, 0.75f, true);
+   private ThreadLocal<Deflater> deflaters = ThreadLocal.withInitial(() -> new Deflater(Deflater.BEST_SPEED));
+   private ThreadLocal<Inflater> inflaters = ThreadLocal.withInitial(Inflater::new);
+
+   /**
+    * Creates an empty cache.
+    * @param blocksize the block size
+    * @param budget the maximum number of bytes of compressed images
+    */
+   public VictimCache(int blocksize, long budget) {
+      this.blocksize = blocksize;
+      this.budget = budget;
+   }
+
+   /**
+    * Stores the compressed image of a block that is leaving the pool,
+    * replacing any earlier image of the block.
+    * @param blk the block
+    * @param p the page holding the block's current contents
+    */
+   public void put(BlockId blk, Page p) {
+      byte[] image = compress(p);
+      synchronized (this) {
+         byte[] old = images.remove(blk);
+         if (old != null)
+            used -= old.length;
+         if (image == null)
+            return;
+         images.put(blk, image);
+         used += image.length;
+         Iterator<byte[]> iter = images.values().iterator();
+         while (used > budget) {
+            used -= iter.next().length;
+            iter.remove();
+         }
+      }
+   }
+
+   /**
+    * Removes the image of the specified block from the cache,
+    * if it is there, and decompresses it into the page.
+    * @param blk the block
+    * @param p the page to fill
+    * @return true if the cache held an image of the block
+    */
+   public boolean take(BlockId blk, Page p) {
+      byte[] image;
+      synchronized (this) {
+         image = images.remove(blk);
+         if (image == null)
+            return false;
+         used -= image.length;
+      }
+      Inflater inflater = inflaters.get();
+      inflater.reset();
+      inflater.setInput(image);
+      try {
+         ByteBuffer bb = p.view();
+         while (bb.hasRemaining() && !inflater.finished())
+            inflater.inflate(bb);
+      }
+      catch (DataFormatException e) {
+         throw new RuntimeException("corrupt cached image of " + blk);
+      }
+      return true;
+   }
+
+   /**
+    * Compresses the page, or returns null if the image
+    * would be three quarters of a block or more.
+    */
+   private byte[] compress(Page p) {
+      Deflater deflater = deflaters.get();
+      deflater.reset();
+      deflater.setInput(p.view());
+      deflater.finish();
+      byte[] out = new byte[blocksize * 3 / 4];
+      int n = 0;
+      while (!deflater.finished() && n < out.length)
+         n += deflater.deflate(out, n, out.length - n);
+      return deflater.finished() ? Arrays.copyOf(out, n) : null;
+   }
+}
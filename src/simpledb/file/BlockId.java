@@ -18,6 +18,8 @@ public class BlockId {
    }
    
    public boolean equals(Object obj) {
+      if (!(obj instanceof BlockId))
+         return false;
       BlockId blk = (BlockId) obj;
       return filename.equals(blk.filename) && blknum == blk.blknum;
    }
@@ -27,6 +29,6 @@ public class BlockId {
    }
    
    public int hashCode() {
-      return toString().hashCode();
+      return 31 * filename.hashCode() + blknum;
    }
 }
@@ -0,0 +1,31 @@
+package simpledb.file;
+
+/**
+ * The durability settings supported by the file manager.
+ * They determine when writes to database files are synced to disk.
+ * Temporary files are never synced, whatever the setting.
+ */
+public enum Durability {
+   /**
+    * Every block write is synced before it returns,
+    * as if the file were opened in "rws" mode.
+    */
+   STRICT,
+
+   /**
+    * Block writes are buffered by the operating system,
+    * and the files are synced explicitly at the points where
+    * write-ahead logging needs them to be durable:
+    * when the log is flushed, when a transaction's buffers are
+    * flushed at commit or rollback, and at a checkpoint.
+    * Each file is synced once per such point, however many
+    * of its blocks were written.
+    */
+   GROUP_FSYNC,
+
+   /**
+    * Files are never synced. Data survives a crash of the
+    * database process, but not a crash of the operating system.
+    */
+   OS_BUFFERED
+}
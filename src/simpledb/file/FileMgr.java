@@ -1,76 +1,317 @@
 package simpledb.file;
 
+import static java.nio.file.StandardOpenOption.*;
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import com.sun.nio.file.ExtendedOpenOption;
 import java.util.*;
+import java.util.concurrent.*;
 
 public class FileMgr {
+   public static final int REGION_BLOCKS = 1024;
    private File dbDirectory;
    private int blocksize;
    private boolean isNew;
-   private Map<String,RandomAccessFile> openFiles = new HashMap<>();
+   private boolean mmap;
+   private Durability durability;
+   private int extentblocks;
+   private int regionblocks;
+   private int alignment = 0;
+   private ConcurrentMap<String,OpenFile> openFiles = new ConcurrentHashMap<>();
 
    public FileMgr(File dbDirectory, int blocksize) {
+      this(dbDirectory, blocksize, false, REGION_BLOCKS, Durability.GROUP_FSYNC, 1, false);
+   }
+
+   /**
+    * Creates a file manager for the specified database directory.
+    * In mmap mode, each file is mapped into memory in regions of
+    * the specified number of blocks as it grows, and blocks inside a mapped
+    * region are read and written by copying to and from the mapping
+    * instead of issuing a system call.
+    * The last region is mapped as far as the file extends,
+    * so even a file smaller than a region is mapped.
+    * Blocks past the end of the file still go through its channel.
+    * Note that writes to a mapping are not synchronous:
+    * they reach the disk when the operating system writes the mapping back,
+    * or when the file is synced.
+    * The durability setting determines when files are synced;
+    * see {@link Durability}.
+    * Files grow on disk in extents of the specified number of blocks,
+    * so that most appends need no I/O.
+    * <p>
+    * In direct mode, files are opened with O_DIRECT, so block I/O
+    * bypasses the operating system's page cache and blocks are cached
+    * only in the buffer pool. The block size must then be a multiple
+    * of the file system's block size, and pages should be allocated
+    * with {@link #ioAlignment()}; other pages are copied through
+    * an aligned buffer. Direct mode cannot be combined with mmap mode.
+    * @param dbDirectory the database directory
+    * @param blocksize the block size
+    * @param mmap whether to use memory-mapped block I/O
+    * @param regionblocks the number of blocks in a mapped region
+    * @param durability when writes are synced to disk
+    * @param extentblocks the number of blocks a file grows by on disk
+    * @param direct whether to bypass the page cache with direct I/O
+    */
+   public FileMgr(File dbDirectory, int blocksize, boolean mmap, int regionblocks, Durability durability, int extentblocks, boolean direct) {
       this.dbDirectory = dbDirectory;
       this.blocksize = blocksize;
+      this.mmap = mmap;
+      this.regionblocks = regionblocks;
+      this.durability = durability;
+      this.extentblocks = extentblocks;
       isNew = !dbDirectory.exists();
 
       // create the directory if the database is new
       if (isNew)
          dbDirectory.mkdirs();
 
+      if (direct) {
+         if (mmap)
+            throw new IllegalArgumentException("direct I/O cannot be used with mmap");
+         alignment = fileSystemBlockSize();
+         if (blocksize % alignment != 0)
+            throw new IllegalArgumentException("block size " + blocksize
+                  + " is not a multiple of the file system block size " + alignment);
+      }
+
       // remove any leftover temporary tables
       for (String filename : dbDirectory.list())
-         if (filename.startsWith("temp"))
+         if (isTemp(filename))
          		new File(dbDirectory, filename).delete();
    }
 
-   public synchronized void read(BlockId blk, Page p) {
+   public void read(BlockId blk, Page p) {
       try {
-         RandomAccessFile f = getFile(blk.fileName());
-         f.seek(blk.number() * blocksize);
-         f.getChannel().read(p.contents());
+         ByteBuffer region = mappedRegion(blk);
+         if (region != null) {
+            int offset = regionOffset(blk);
+            region.position(offset).limit(offset + blocksize);
+            p.contents().put(region);
+            return;
+         }
+         OpenFile f = getFile(blk.fileName());
+         f.read(p.contents(), position(blk));
       }
       catch (IOException e) {
          throw new RuntimeException("cannot read block " + blk);
       }
    }
 
-   public synchronized void write(BlockId blk, Page p) {
+   /**
+    * Reads the specified blocks into the corresponding pages.
+    * The requests are sorted by file and block number,
+    * and each run of adjacent blocks in a file is read
+    * with a single scattering read.
+    * @param blks the blocks to read
+    * @param pages the pages to read them into
+    */
+   public void readBatch(List<BlockId> blks, List<Page> pages) {
+      Integer[] order = new Integer[blks.size()];
+      for (int i=0; i<order.length; i++)
+         order[i] = i;
+      Arrays.sort(order, (i, j) -> {
+         BlockId b1 = blks.get(i), b2 = blks.get(j);
+         int c = b1.fileName().compareTo(b2.fileName());
+         return (c != 0) ? c : Integer.compare(b1.number(), b2.number());
+      });
+      int start = 0;
+      while (start < order.length) {
+         int end = start + 1;
+         while (end < order.length && adjacent(blks.get(order[end-1]), blks.get(order[end])))
+            end++;
+         readRun(blks, pages, Arrays.copyOfRange(order, start, end));
+         start = end;
+      }
+   }
+
+   public void write(BlockId blk, Page p) {
       try {
-         RandomAccessFile f = getFile(blk.fileName());
-         f.seek(blk.number() * blocksize);
-         f.getChannel().write(p.contents());
+         ByteBuffer region = mappedRegion(blk);
+         OpenFile f = getFile(blk.fileName());
+         if (region != null) {
+            region.position(regionOffset(blk));
+            region.put(p.contents());
+            f.mappedWrite(blk.number() / regionblocks);
+         }
+         else
+            f.write(p.contents(), position(blk));
+         f.written(blk.number());
       }
       catch (IOException e) {
          throw new RuntimeException("cannot write block" + blk);
       }
    }
 
-   public synchronized BlockId append(String filename) {
-      int newblknum = length(filename);
-      BlockId blk = new BlockId(filename, newblknum);
-      byte[] b = new byte[blocksize];
+   /**
+    * Appends a zeroed block to the end of the file.
+    * The file is extended on disk a whole extent at a time,
+    * so an append that falls inside an already-allocated extent
+    * only advances the file's logical end.
+    * Appends to the same file are serialized on that file's lock;
+    * appends to different files, and all reads and writes,
+    * proceed in parallel.
+    * @param filename the name of the file
+    * @return a reference to the new block
+    */
+   public BlockId append(String filename) {
       try {
-         RandomAccessFile f = getFile(blk.fileName());
-         f.seek(blk.number() * blocksize);
-         f.write(b);
+         OpenFile f = getFile(filename);
+         int newblknum = f.append(extentblocks);
+         return new BlockId(filename, newblknum);
       }
       catch (IOException e) {
-         throw new RuntimeException("cannot append block" + blk);
+         throw new RuntimeException("cannot append block to " + filename);
+      }
+   }
+
+   /**
+    * Releases the preallocated disk space beyond the logical end
+    * of every open file. This method is called at shutdown;
+    * if it is not, the unused blocks of the last extent of each file
+    * remain part of the file as empty blocks.
+    */
+   public void trimExtents() {
+      for (String filename : openFiles.keySet()) {
+         try {
+            getFile(filename).trim();
+         }
+         catch (IOException e) {
+            throw new RuntimeException("cannot trim " + filename);
+         }
       }
-      return blk;
    }
 
+   /**
+    * Returns the logical length of the file, in blocks.
+    * Preallocated blocks beyond the logical end are not counted.
+    * @param filename the name of the file
+    * @return the number of blocks in the file
+    */
    public int length(String filename) {
       try {
-         RandomAccessFile f = getFile(filename);
-         return (int)(f.length() / blocksize);
+         OpenFile f = getFile(filename);
+         return f.length();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + filename);
+      }
+   }
+
+   /**
+    * Forces the writes made to the specified file to disk.
+    * Under the STRICT setting every write is already durable,
+    * and under OS_BUFFERED nothing is ever synced,
+    * so the method only does something under GROUP_FSYNC.
+    * Temporary files are never synced.
+    * @param filename the name of the file
+    */
+   public void sync(String filename) {
+      if (durability != Durability.GROUP_FSYNC || isTemp(filename))
+         return;
+      try {
+         getFile(filename).sync();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot sync " + filename);
+      }
+   }
+
+   /**
+    * Forces the writes made to every open database file to disk,
+    * syncing each file that has been written since its last sync once.
+    * @see #sync(String)
+    */
+   public void syncAll() {
+      for (String filename : openFiles.keySet())
+         sync(filename);
+   }
+
+   /**
+    * Returns the memory alignment required by direct I/O,
+    * or 1 if the file manager is not in direct mode.
+    * @return the alignment of page memory
+    */
+   public int ioAlignment() {
+      return (alignment > 0) ? alignment : 1;
+   }
+
+   /**
+    * Reads the whole of a small auxiliary file of the database
+    * directory, which is not accessed in blocks.
+    * @param filename the name of the file
+    * @return the contents of the file, or null if it does not exist
+    */
+   public byte[] readFile(String filename) {
+      Path path = new File(dbDirectory, filename).toPath();
+      try {
+         return Files.exists(path) ? Files.readAllBytes(path) : null;
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + filename);
+      }
+   }
+
+   /**
+    * Replaces the contents of a small auxiliary file of the database
+    * directory. The new contents are written to a separate file,
+    * which is synced and then renamed over the old one,
+    * so that a crash leaves either the old or the new contents.
+    * @param filename the name of the file
+    * @param bytes the new contents
+    */
+   public void writeFile(String filename, byte[] bytes) {
+      Path path = new File(dbDirectory, filename).toPath();
+      Path tmp = new File(dbDirectory, filename + ".new").toPath();
+      try (FileChannel channel = FileChannel.open(tmp, WRITE, CREATE, TRUNCATE_EXISTING)) {
+         channel.write(ByteBuffer.wrap(bytes));
+         channel.force(true);
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + filename);
+      }
+      try {
+         Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
       }
       catch (IOException e) {
          throw new RuntimeException("cannot access " + filename);
       }
    }
 
+   /**
+    * Returns the names of the files of the database directory
+    * that start with the specified prefix.
+    * @param prefix the beginning of the file names
+    * @return the names of the matching files
+    */
+   public List<String> files(String prefix) {
+      List<String> result = new ArrayList<>();
+      for (String filename : dbDirectory.list())
+         if (filename.startsWith(prefix))
+            result.add(filename);
+      return result;
+   }
+
+   /**
+    * Closes and deletes the specified file.
+    * The caller must ensure that no other client is using the file.
+    * @param filename the name of the file
+    */
+   public void delete(String filename) {
+      OpenFile f = openFiles.remove(filename);
+      try {
+         if (f != null)
+            f.close();
+         Files.deleteIfExists(new File(dbDirectory, filename).toPath());
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot delete " + filename);
+      }
+   }
+
    public boolean isNew() {
       return isNew;
    }
@@ -79,13 +320,93 @@ public class FileMgr {
       return blocksize;
    }
 
-   private RandomAccessFile getFile(String filename) throws IOException {
-      RandomAccessFile f = openFiles.get(filename);
+   private OpenFile getFile(String filename) throws IOException {
+      OpenFile f = openFiles.get(filename);
       if (f == null) {
-         File dbTable = new File(dbDirectory, filename);
-         f = new RandomAccessFile(dbTable, "rws");
-         openFiles.put(filename, f);
+         Path dbTable = new File(dbDirectory, filename).toPath();
+         boolean strict = durability == Durability.STRICT && !isTemp(filename);
+         Set<OpenOption> options = new HashSet<>(Arrays.asList(READ, WRITE, CREATE));
+         if (strict)
+            options.add(SYNC);
+         if (alignment > 0)
+            options.add(ExtendedOpenOption.DIRECT);
+         FileChannel channel = FileChannel.open(dbTable, options);
+         f = new OpenFile(channel, strict, blocksize, alignment);
+         OpenFile existing = openFiles.putIfAbsent(filename, f);
+         if (existing != null) {
+            // another thread opened the file first
+            channel.close();
+            f = existing;
+         }
       }
       return f;
    }
+
+   private int fileSystemBlockSize() {
+      try {
+         return (int) Files.getFileStore(dbDirectory.toPath()).getBlockSize();
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot access " + dbDirectory);
+      }
+   }
+
+   /**
+    * Returns true if the specified file holds a temporary table,
+    * which is deleted when the database restarts.
+    * @param filename the name of the file
+    * @return true if the file is temporary
+    */
+   public boolean isTemp(String filename) {
+      return filename.startsWith("temp");
+   }
+
+   private boolean adjacent(BlockId b1, BlockId b2) {
+      return b1.fileName().equals(b2.fileName()) && b1.number() + 1 == b2.number();
+   }
+
+   /**
+    * Reads a run of adjacent blocks of one file.
+    * Blocks that lie in mapped regions are copied from the mapping,
+    * so only unmapped runs need the scattering read.
+    */
+   private void readRun(List<BlockId> blks, List<Page> pages, Integer[] run) {
+      BlockId first = blks.get(run[0]);
+      if (run.length == 1 || mmap) {
+         for (int i : run)
+            read(blks.get(i), pages.get(i));
+         return;
+      }
+      try {
+         ByteBuffer[] bbs = new ByteBuffer[run.length];
+         for (int i=0; i<run.length; i++)
+            bbs[i] = pages.get(run[i]).contents();
+         getFile(first.fileName()).read(bbs, position(first));
+      }
+      catch (IOException e) {
+         throw new RuntimeException("cannot read blocks starting at " + first);
+      }
+   }
+
+   private long position(BlockId blk) {
+      return (long) blk.number() * blocksize;
+   }
+
+   /**
+    * Returns a private view of the mapped region containing the block,
+    * or null if the file manager is not in mmap mode or the block
+    * does not yet lie inside the file.
+    * Regions are mapped lazily, as the file grows to cover them.
+    */
+   private ByteBuffer mappedRegion(BlockId blk) throws IOException {
+      if (!mmap)
+         return null;
+      OpenFile f = getFile(blk.fileName());
+      return f.mappedRegion(blk.number() / regionblocks, (long) regionblocks * blocksize,
+                            regionOffset(blk) + blocksize);
+   }
+
+   private int regionOffset(BlockId blk) {
+      return (blk.number() % regionblocks) * blocksize;
+   }
 }
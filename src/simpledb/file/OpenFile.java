@@ -0,0 +1,279 @@
+package simpledb.file;
+
+import java.io.IOException;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.util.*;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A database file opened by the file manager.
+ * Reads and writes use positional channel operations,
+ * so they need no lock and can proceed in parallel.
+ * The object itself serves as the file's append lock.
+ * The object also records whether the file has been written
+ * since it was last synced.
+ * <p>
+ * Files grow in extents: the file manager's logical length of a file
+ * can be less than the space allocated to it on disk, and appends
+ * within an allocated extent need no I/O.
+ * The allocated tail is trimmed off by {@link #trim()}.
+ * <p>
+ * A file opened for direct I/O bypasses the operating system's
+ * page cache. Every transfer must then use memory aligned to the
+ * file system's block size; buffers that are not aligned are
+ * copied through an aligned bounce buffer.
+ */
+class OpenFile {
+   private FileChannel channel;
+   private boolean strict;
+   private int blocksize;
+   private volatile int numblocks;
+   private int allocated;
+   private long regionsize = 0;
+   private int alignment;
+   private ThreadLocal<ByteBuffer> bounce = new ThreadLocal<>();
+   private volatile boolean unsynced = false;
+   private List<MappedByteBuffer> regions = new CopyOnWriteArrayList<>();
+   private Object positionLock = new Object();
+
+   /**
+    * @param channel the file's channel
+    * @param strict true if the channel was opened for synchronous writes
+    * @param blocksize the block size
+    * @param alignment the required memory alignment if the channel
+    *                  was opened for direct I/O, or 0 otherwise
+    */
+   OpenFile(FileChannel channel, boolean strict, int blocksize, int alignment) throws IOException {
+      this.channel = channel;
+      this.strict = strict;
+      this.blocksize = blocksize;
+      this.alignment = alignment;
+      numblocks = (int) (channel.size() / blocksize);
+      allocated = numblocks;
+   }
+
+   /**
+    * Returns the logical length of the file, in blocks.
+    * @return the number of blocks in the file
+    */
+   int length() {
+      return numblocks;
+   }
+
+   /**
+    * Adds a block to the logical end of the file
+    * and returns its block number.
+    * If the file has no allocated space left, it is first
+    * extended on disk by the specified number of zeroed blocks.
+    * @param extentblocks the number of blocks to allocate at a time
+    * @return the number of the new block
+    */
+   synchronized int append(int extentblocks) throws IOException {
+      if (numblocks == allocated) {
+         ByteBuffer zeros = ByteBuffer.allocate(extentblocks * blocksize);
+         write(zeros, (long) allocated * blocksize);
+         allocated += extentblocks;
+      }
+      return numblocks++;
+   }
+
+   /**
+    * Records that a block has been written at the specified position,
+    * moving the logical end of the file past it if necessary.
+    * Writing past the end of a file extends it, as it does on disk.
+    * @param blknum the number of the written block
+    */
+   void written(int blknum) {
+      if (blknum < numblocks)
+         return;
+      synchronized (this) {
+         if (blknum >= numblocks)
+            numblocks = blknum + 1;
+         if (numblocks > allocated)
+            allocated = numblocks;
+      }
+   }
+
+   /**
+    * Releases the disk space allocated beyond the logical end of the file.
+    * A mapping of the last region that extends past the logical end
+    * is dropped first, so that it is mapped again if the file grows.
+    */
+   synchronized void trim() throws IOException {
+      long size = (long) numblocks * blocksize;
+      if (size < channel.size()) {
+         int last = regions.size() - 1;
+         if (last >= 0 && last * regionsize + regions.get(last).capacity() > size)
+            regions.remove(last);
+         channel.truncate(size);
+         allocated = numblocks;
+      }
+   }
+
+   /**
+    * Reads bytes from the file, starting at the specified position,
+    * until the buffer is full or the end of the file is reached.
+    * @param bb the buffer to fill
+    * @param pos the file position of the first byte
+    */
+   void read(ByteBuffer bb, long pos) throws IOException {
+      if (needsBounce(bb)) {
+         ByteBuffer tmp = bounceBuffer(bb.remaining());
+         read(tmp, pos);
+         bb.put(tmp.flip());
+         return;
+      }
+      long start = pos - bb.position();
+      while (bb.hasRemaining())
+         if (channel.read(bb, start + bb.position()) < 0)
+            return;
+   }
+
+   /**
+    * Writes the remaining bytes of the buffer to the file,
+    * starting at the specified position.
+    * @param bb the buffer to write
+    * @param pos the file position of the first byte
+    */
+   void write(ByteBuffer bb, long pos) throws IOException {
+      if (needsBounce(bb)) {
+         ByteBuffer tmp = bounceBuffer(bb.remaining());
+         tmp.put(bb).flip();
+         write(tmp, pos);
+         return;
+      }
+      long start = pos - bb.position();
+      while (bb.hasRemaining())
+         channel.write(bb, start + bb.position());
+      unsynced = !strict;
+   }
+
+   /**
+    * Records that a block was written through the specified mapped region.
+    * For a strict file, the region is forced to disk immediately.
+    * @param regionnum the region number
+    */
+   void mappedWrite(int regionnum) {
+      if (strict)
+         regions.get(regionnum).force();
+      else
+         unsynced = true;
+   }
+
+   /**
+    * Forces all writes made to the file so far to disk,
+    * unless there have been none since the last sync.
+    */
+   void sync() throws IOException {
+      if (!unsynced)
+         return;
+      unsynced = false;
+      for (MappedByteBuffer region : regions)
+         region.force();
+      channel.force(true);
+   }
+
+   /**
+    * Closes the file's channel.
+    * The mapped regions stay valid until they are unreachable.
+    */
+   void close() throws IOException {
+      channel.close();
+   }
+
+   /**
+    * Fills the buffers in order from consecutive bytes of the file,
+    * starting at the specified position, using a single scattering read.
+    * Scattering reads use the channel's position,
+    * so they are serialized with each other;
+    * positional reads and writes are unaffected.
+    * @param bbs the buffers to fill
+    * @param pos the file position of the first byte
+    */
+   void read(ByteBuffer[] bbs, long pos) throws IOException {
+      for (ByteBuffer bb : bbs)
+         if (needsBounce(bb)) {
+            for (int i=0; i<bbs.length; i++)
+               read(bbs[i], pos + (long) i * blocksize);
+            return;
+         }
+      synchronized (positionLock) {
+         channel.position(pos);
+         ByteBuffer last = bbs[bbs.length-1];
+         while (last.hasRemaining())
+            if (channel.read(bbs) < 0)
+               return;
+      }
+   }
+
+   private boolean needsBounce(ByteBuffer bb) {
+      return alignment > 0 && (!bb.isDirect() || bb.alignmentOffset(bb.position(), alignment) != 0);
+   }
+
+   /**
+    * Returns an empty aligned buffer of the specified size.
+    * Block-sized buffers are cached per thread.
+    */
+   private ByteBuffer bounceBuffer(int size) {
+      if (size != blocksize)
+         return Page.allocateAligned(size, alignment);
+      ByteBuffer bb = bounce.get();
+      if (bb == null) {
+         bb = Page.allocateAligned(size, alignment);
+         bounce.set(bb);
+      }
+      return bb.clear();
+   }
+
+   /**
+    * Returns a private view of the specified mapped region,
+    * mapping it first if necessary.
+    * The last region of a file need not lie wholly inside the file.
+    * It is mapped at least as far as the file's logical end and
+    * its allocated extent, and once the file grows past the mapping
+    * it is mapped again at twice the size, up to a whole region;
+    * a file that grows a block at a time is thus remapped
+    * only a few times per region.
+    * Mapping past the end of the file extends it on disk,
+    * so the mapped space counts as allocated.
+    * Returns null if the specified part of the region
+    * does not yet lie inside the file.
+    * @param regionnum the region number
+    * @param regionsize the size of a region in bytes
+    * @param needed the number of bytes at the start of the region that must be mapped
+    * @return a view of the region, or null
+    */
+   ByteBuffer mappedRegion(int regionnum, long regionsize, long needed) throws IOException {
+      if (regionnum < regions.size()) {
+         MappedByteBuffer region = regions.get(regionnum);
+         if (region.capacity() >= needed)
+            return region.duplicate();
+      }
+      synchronized (this) {
+         this.regionsize = regionsize;
+         long filesize = (long) numblocks * blocksize;
+         for (int i=0; i<=regionnum; i++) {
+            long start = i * regionsize;
+            long size = Math.min(regionsize, filesize - start);
+            size -= size % blocksize;
+            if (size <= 0)
+               return null;
+            long capacity = i < regions.size() ? regions.get(i).capacity() : 0;
+            if (capacity >= size)
+               continue;
+            size = Math.max(size, (long) allocated * blocksize - start);
+            size = Math.min(regionsize, Math.max(size, 2 * capacity));
+            MappedByteBuffer region = channel.map(MapMode.READ_WRITE, start, size);
+            if (i == regions.size())
+               regions.add(region);
+            else
+               regions.set(i, region);
+            allocated = (int) Math.max(allocated, (start + size) / blocksize);
+         }
+         MappedByteBuffer region = regions.get(regionnum);
+         return region.capacity() >= needed ? region.duplicate() : null;
+      }
+   }
+}
@@ -11,7 +11,18 @@ public class Page {
    public Page(int blocksize) {
       bb = ByteBuffer.allocateDirect(blocksize);
    }
+
+   // For creating data buffers and log pages used with direct I/O,
+   // whose memory must start on an alignment boundary
+   public Page(int blocksize, int alignment) {
+      bb = allocateAligned(blocksize, alignment);
+   }
    
+   // For creating pages that are views over part of a PageArena
+   Page(ByteBuffer bb) {
+      this.bb = bb;
+   }
+
    // For creating log pages
    public Page(byte[] b) {
       bb = ByteBuffer.wrap(b);
@@ -25,6 +36,14 @@ public class Page {
       bb.putInt(offset, n);
    }
 
+   public long getLong(int offset) {
+      return bb.getLong(offset);
+   }
+
+   public void setLong(int offset, long n) {
+      bb.putLong(offset, n);
+   }
+
    public byte[] getBytes(int offset) {
       bb.position(offset);
       int length = bb.getInt();
@@ -49,11 +68,51 @@ public class Page {
       setBytes(offset, b);
    }
 
+   /**
+    * Compares the string stored at the specified offset
+    * with an encoded key, byte by byte and in place,
+    * without decoding the stored string.
+    * For the single-byte CHARSET, the result has the same sign
+    * as comparing the decoded strings with String.compareTo.
+    * @param offset the offset of the stored string
+    * @param key the key, encoded with CHARSET
+    * @return a negative number, zero, or a positive number
+    *         as the stored string is less than, equal to,
+    *         or greater than the key
+    */
+   public int compareString(int offset, byte[] key) {
+      int length = bb.getInt(offset);
+      int pos = offset + Integer.BYTES;
+      int n = Math.min(length, key.length);
+      for (int i=0; i<n; i++) {
+         int diff = (bb.get(pos + i) & 0xff) - (key[i] & 0xff);
+         if (diff != 0)
+            return diff;
+      }
+      return length - key.length;
+   }
+
    public static int maxLength(int strlen) {
       float bytesPerChar = CHARSET.newEncoder().maxBytesPerChar();
       return Integer.BYTES + (strlen * (int)bytesPerChar);
    }
 
+   /**
+    * Returns a view of the whole page that has its own position,
+    * for code that processes the page's bytes as a unit,
+    * such as compression.
+    * @return a buffer sharing the page's bytes
+    */
+   public ByteBuffer view() {
+      return bb.duplicate().clear();
+   }
+
+   // a package private method, needed by FileMgr for direct I/O
+   static ByteBuffer allocateAligned(int size, int alignment) {
+      ByteBuffer aligned = ByteBuffer.allocateDirect(size + alignment - 1).alignedSlice(alignment);
+      return aligned.limit(size).slice();
+   }
+
    // a package private method, needed by FileMgr
    ByteBuffer contents() {
       bb.position(0);
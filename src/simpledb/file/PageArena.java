@@ -0,0 +1,58 @@
+package simpledb.file;
+
+import java.nio.ByteBuffer;
+import java.util.*;
+
+/**
+ * A large off-heap memory area that is carved into block-sized pages.
+ * Allocating a buffer pool's pages from an arena takes a handful of
+ * native allocations instead of one per page, gives the pool a
+ * predictable footprint, and keeps its pages next to each other.
+ * Each page is a view over its own slice of the arena.
+ * Because a direct buffer is limited to 2GB, the arena is
+ * allocated in chunks of at most CHUNK_SIZE bytes.
+ */
+public class PageArena {
+   public static final int CHUNK_SIZE = 1 << 30;
+   private List<ByteBuffer> chunks = new ArrayList<>();
+   private int blocksize, pagesPerChunk, numpages;
+
+   /**
+    * Allocates an arena holding the specified number of pages.
+    * The arena's memory starts on the specified alignment boundary,
+    * so if the block size is a multiple of the alignment,
+    * every page is aligned as well.
+    * @param blocksize the size of a page
+    * @param numpages the number of pages
+    * @param alignment the alignment of the arena's memory
+    */
+   public PageArena(int blocksize, int numpages, int alignment) {
+      this.blocksize = blocksize;
+      this.numpages = numpages;
+      pagesPerChunk = Math.max(1, CHUNK_SIZE / blocksize);
+      for (int n=numpages; n>0; n-=pagesPerChunk) {
+         int size = Math.min(n, pagesPerChunk) * blocksize;
+         chunks.add(Page.allocateAligned(size, alignment));
+      }
+   }
+
+   /**
+    * Returns the number of pages in the arena.
+    * @return the number of pages
+    */
+   public int size() {
+      return numpages;
+   }
+
+   /**
+    * Returns a page that is a view over the specified slice of the arena.
+    * @param i the index of the page
+    * @return the page
+    */
+   public Page page(int i) {
+      ByteBuffer chunk = chunks.get(i / pagesPerChunk).duplicate();
+      int offset = (i % pagesPerChunk) * blocksize;
+      chunk.position(offset).limit(offset + blocksize);
+      return new Page(chunk.slice());
+   }
+}
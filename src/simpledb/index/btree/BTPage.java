@@ -40,7 +40,7 @@ public class BTPage {
     */
    public int findSlotBefore(Constant searchkey) {
       int slot = 0;
-      while (slot < getNumRecs() && getDataVal(slot).compareTo(searchkey) < 0)
+      while (slot < getNumRecs() && compareDataVal(slot, searchkey) < 0)
          slot++;
       return slot-1;
    }
@@ -88,6 +88,23 @@ public class BTPage {
       return getVal(slot, "dataval");
    }
    
+   /**
+    * Compare the dataval of the record at the specified slot
+    * with a search key of the same type.
+    * The stored value is compared in place,
+    * without creating a Constant for it.
+    * @param slot the integer slot of an index record
+    * @param searchkey the search key
+    * @return the sign of the comparison, as in Constant.compareTo
+    */
+   public int compareDataVal(int slot, Constant searchkey) {
+      int pos = fldpos(slot, "dataval");
+      if (layout.schema().type("dataval") == INTEGER)
+         return Integer.compare(tx.getInt(currentblk, pos), searchkey.asInt());
+      else
+         return tx.compareString(currentblk, pos, searchkey.asBytes());
+   }
+   
    /**
     * Return the value of the page's flag field
     * @return the value of the page's flag field
@@ -52,7 +52,7 @@ public class BTreeLeaf {
       currentslot++;
       if (currentslot >= contents.getNumRecs()) 
          return tryOverflow();
-      else if (contents.getDataVal(currentslot).equals(searchkey))
+      else if (contents.compareDataVal(currentslot, searchkey) == 0)
          return true;
       else 
          return tryOverflow();
@@ -92,7 +92,7 @@ public class BTreeLeaf {
     * @return the directory entry of the newly-split page, if one exists.
     */
    public DirEntry insert(RID datarid) {
-      if (contents.getFlag() >= 0 && contents.getDataVal(0).compareTo(searchkey) > 0) {
+      if (contents.getFlag() >= 0 && contents.compareDataVal(0, searchkey) > 0) {
          Constant firstval = contents.getDataVal(0);
          BlockId newblk = contents.split(0, contents.getFlag());
          currentslot = 0;
@@ -57,7 +57,7 @@ public class HashIndex implements Index {
 	 */
 	public boolean next() {
 		while (ts.next())
-			if (ts.getVal("dataval").equals(searchkey))
+			if (ts.compareField("dataval", searchkey) == 0)
 				return true;
 		return false;
 	}
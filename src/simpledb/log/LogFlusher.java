@@ -0,0 +1,40 @@
+package simpledb.log;
+
+/**
+ * A background thread that writes the log.
+ * Each round, the flusher writes the log pages that have
+ * filled up, so that appending clients need not wait for them.
+ * If group commit is enabled, it also waits for a batch
+ * of commits to collect and then writes the log tail
+ * once for all of them.
+ * A failed write does not stop the flusher; the log manager
+ * records the failure and reports it to the waiting clients.
+ */
+class LogFlusher extends Thread {
+   private LogMgr lm;
+
+   /**
+    * @param lm the log manager
+    */
+   LogFlusher(LogMgr lm) {
+      super("log flusher");
+      this.lm = lm;
+      setDaemon(true);
+   }
+
+   public void run() {
+      try {
+         while (true) {
+            try {
+               lm.flushPending();
+            }
+            catch(RuntimeException e) {
+               // recorded by the log manager, which wakes its waiters
+            }
+         }
+      }
+      catch(InterruptedException e) {
+         // the flusher has been stopped
+      }
+   }
+}
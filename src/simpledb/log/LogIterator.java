@@ -6,26 +6,30 @@ import simpledb.file.*;
 /**
  * A class that provides the ability to move through the
  * records of the log file in reverse order.
+ * Blocks are numbered across the segments of the log,
+ * and the iterator stops at the oldest remaining segment.
  * 
  * @author Edward Sciore
  */
-class LogIterator implements Iterator<byte[]> {
+public class LogIterator implements Iterator<byte[]> {
    private FileMgr fm;
-   private BlockId blk;
+   private LogMgr lm;
+   private long blknum;
    private Page p;
    private int currentpos;
    private int boundary;
+   private long lsn = -1;
 
    /**
     * Creates an iterator for the records in the log file,
     * positioned after the last log record.
     */
-   public LogIterator(FileMgr fm, BlockId blk) {
+   LogIterator(FileMgr fm, LogMgr lm, long blknum) {
       this.fm = fm;
-      this.blk = blk;
-      byte[] b = new byte[fm.blockSize()];
-      p = new Page(b);
-      moveToBlock(blk);
+      this.lm = lm;
+      this.blknum = blknum;
+      p = new Page(fm.blockSize(), fm.ioAlignment());
+      moveToBlock(blknum);
    }
 
    /**
@@ -34,7 +38,7 @@ class LogIterator implements Iterator<byte[]> {
     * @return true if there is an earlier record
     */
    public boolean hasNext() {
-      return currentpos<fm.blockSize() || blk.number()>0;
+      return currentpos<fm.blockSize() || blknum>lm.firstBlock();
    }
 
    /**
@@ -46,21 +50,31 @@ class LogIterator implements Iterator<byte[]> {
     */
    public byte[] next() {
       if (currentpos == fm.blockSize()) {
-         blk = new BlockId(blk.fileName(), blk.number()-1);
-         moveToBlock(blk);
+         blknum--;
+         moveToBlock(blknum);
       }
       byte[] rec = p.getBytes(currentpos);
+      lsn = blknum * fm.blockSize() + (fm.blockSize() - currentpos);
       currentpos += Integer.BYTES + rec.length;
       return rec;
    }
 
+   /**
+    * Returns the LSN of the record most recently
+    * returned by {@link #next()}.
+    * @return the LSN of the current log record
+    */
+   public long lsn() {
+      return lsn;
+   }
+
    /**
     * Moves to the specified log block
     * and positions it at the first record in that block
     * (i.e., the most recent one).
     */
-   private void moveToBlock(BlockId blk) {
-      fm.read(blk, p);
+   private void moveToBlock(long blknum) {
+      fm.read(lm.logBlock(blknum), p);
       boundary = p.getInt(0);
       currentpos = boundary;
    }
@@ -1,6 +1,9 @@
 package simpledb.log;
 
-import java.util.Iterator;
+import java.nio.ByteBuffer;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
 import simpledb.file.*;
 
 /**
@@ -8,35 +11,129 @@ import simpledb.file.*;
  * writing log records into a log file. The tail of 
  * the log is kept in a bytebuffer, which is flushed
  * to disk when needed. 
+ * <p>
+ * The log is split into segment files of a fixed number of blocks,
+ * named after the log file and numbered in order.
+ * The blocks of the log are numbered across segments.
+ * Once a checkpoint makes the older part of the log unnecessary,
+ * the segments that lie entirely before it are deleted.
+ * <p>
+ * An LSN is the byte address of the end of a log record.
+ * Block <i>b</i> of the log holds the addresses from
+ * <i>b</i> times the block size up to the next block;
+ * since records are written right to left, addresses within
+ * a block count back from the end of the block.
+ * <p>
+ * Appends do not lock. A client reserves space for its record
+ * by advancing the tail address with a compare-and-set,
+ * and then copies the record into the log page in parallel
+ * with other clients. A record that does not fit
+ * in the tail block starts the next one, and the rest of
+ * the block is left unused. When the copy is done, the client
+ * publishes the reserved range; a completion watermark
+ * tracks how far the log is contiguous, and only the log
+ * below the watermark is written.
+ * <p>
+ * The log is kept in several log pages, which hold consecutive blocks.
+ * A block is written once the watermark has passed it;
+ * a {@link LogFlusher} thread writes full blocks in the background.
+ * The log is written without holding the log manager's lock,
+ * so appends never wait for a disk write, unless they reach
+ * a page whose previous block has not been written yet.
+ * Only one thread writes the log at a time.
+ * <p>
+ * If group commit is enabled, committing transactions
+ * do not flush the log themselves. Each one waits while
+ * the flusher collects a batch of commits,
+ * and the log tail is written and synced once per batch.
+ * A batch is held open only while other transactions are
+ * in the middle of committing, so a lone committer
+ * is flushed at once.
+ * <p>
+ * If a write of the log fails, the failure is recorded,
+ * and every client that waits for the log, or later asks
+ * for it to be flushed, gets an exception caused by it,
+ * since the log can no longer be known to be durable.
  * @author Edward Sciore
  */
 public class LogMgr {
    private FileMgr fm;
    private String logfile;
-   private Page logpage;
-   private BlockId currentblk;
-   private int latestLSN = 0;
-   private int lastSavedLSN = 0;
+   private int blocksize;
+   private int segmentBlocks;
+   private volatile long firstSegment;
+   private Page[] pages = new Page[LOG_PAGES];
+   private Page tailcopy;
+   private AtomicLong tail;
+   private AtomicLong completed;
+   private ConcurrentMap<Long,Long> published = new ConcurrentSkipListMap<>();
+   private volatile long lastSavedLSN;
+   private boolean writing = false;
+   private boolean groupCommit = false;
+   private long batchInterval;
+   private int batchSize;
+   private int batch = 0;
+   private int committing = 0;
+   private volatile RuntimeException failure = null;
+   private long batchLSN = 0;
+   private static final int LOG_PAGES = 4;
+   private static final int SEGMENT_BLOCKS = 256;
 
    /**
-    * Creates the manager for the specified log file.
-    * If the log file does not yet exist, it is created
-    * with an empty first block.
+    * Creates the manager for the specified log,
+    * with segments of a default size.
     * @param FileMgr the file manager
     * @param logfile the name of the log file
     */
    public LogMgr(FileMgr fm, String logfile) {
+      this(fm, logfile, SEGMENT_BLOCKS);
+   }
+
+   /**
+    * Creates the manager for the specified log.
+    * If the log does not yet exist, its first segment is created
+    * with an empty first block.
+    * The flusher thread is started.
+    * @param FileMgr the file manager
+    * @param logfile the name of the log file
+    * @param segmentblocks the number of blocks in a segment file
+    */
+   public LogMgr(FileMgr fm, String logfile, int segmentblocks) {
       this.fm = fm;
       this.logfile = logfile;
-      byte[] b = new byte[fm.blockSize()];
-      logpage = new Page(b);
-      int logsize = fm.length(logfile);
-      if (logsize == 0)
-         currentblk = appendNewBlock();
-      else {
-         currentblk = new BlockId(logfile, logsize-1);
-         fm.read(currentblk, logpage);
+      segmentBlocks = segmentblocks;
+      blocksize = fm.blockSize();
+      for (int i=0; i<LOG_PAGES; i++)
+         pages[i] = new Page(blocksize, fm.ioAlignment());
+      tailcopy = new Page(blocksize, fm.ioAlignment());
+      long lastblk = findSegments();
+      if (lastblk < 0) {
+         lastblk = 0;
+         page(0).setInt(0, blocksize);
+         fm.write(logBlock(0), page(0));
       }
+      else
+         fm.read(logBlock(lastblk), page(lastblk));
+      int boundary = page(lastblk).getInt(0);
+      lastSavedLSN = lastblk * blocksize + (blocksize - boundary);
+      tail = new AtomicLong(lastSavedLSN);
+      completed = new AtomicLong(lastSavedLSN);
+      new LogFlusher(this).start();
+   }
+
+   /**
+    * Enables group commit.
+    * A batch is flushed when it holds the specified number
+    * of commits, when no other commit is in progress,
+    * or when the specified time has passed
+    * since its first commit arrived.
+    * @param interval the longest time a commit waits for its batch, in milliseconds
+    * @param batchsize the number of commits that fill a batch
+    */
+   public synchronized void startGroupCommit(long interval, int batchsize) {
+      batchInterval = interval;
+      batchSize = batchsize;
+      groupCommit = true;
    }
 
    /**
@@ -45,14 +142,173 @@ public class LogMgr {
     * All earlier log records will also be written to disk.
     * @param lsn the LSN of a log record
     */
-   public void flush(int lsn) {
-      if (lsn >= lastSavedLSN)
-         flush();
+   public void flush(long lsn) {
+      flushTo(lsn);
+   }
+
+   /**
+    * Announces that a transaction has begun to commit or roll back,
+    * and will call {@link #flushCommit(long)} shortly.
+    * The flusher keeps a batch open only while
+    * such announced commits have yet to join it.
+    */
+   public synchronized void startCommit() {
+      if (groupCommit)
+         committing++;
+   }
+
+   /**
+    * Ensures that the commit or rollback record with the specified LSN
+    * has been written to disk, as in {@link #flush(long)}.
+    * If group commit is enabled, the record is flushed
+    * by the flusher thread along with the rest of its batch,
+    * and the caller waits until then.
+    * @param lsn the LSN of a commit or rollback record
+    */
+   public void flushCommit(long lsn) {
+      synchronized (this) {
+         if (groupCommit) {
+            if (committing > 0)
+               committing--;
+            if (lsn <= lastSavedLSN)
+               return;
+            batch++;
+            batchLSN = Math.max(batchLSN, lsn);
+            if (batch == 1 || batch >= batchSize || committing == 0)
+               notifyAll();
+            while (lsn > lastSavedLSN)
+               await();
+            return;
+         }
+      }
+      flushTo(lsn);
+   }
+
+   /**
+    * Waits until there are full blocks to write or a batch
+    * of commits is complete, and writes them.
+    * A batch is complete once it is full, once no other
+    * commit is on its way, or once its time is up.
+    * This method is called repeatedly by the flusher thread.
+    */
+   void flushPending() throws InterruptedException {
+      long lsn;
+      synchronized (this) {
+         while (failure != null)
+            wait();
+         while (!blocksFull() && batch == 0)
+            wait();
+         if (!blocksFull()) {
+            long deadline = System.currentTimeMillis() + batchInterval;
+            long remaining = batchInterval;
+            while (!blocksFull() && batch > 0 && batch < batchSize && committing > 0 && remaining > 0) {
+               wait(remaining);
+               remaining = deadline - System.currentTimeMillis();
+            }
+         }
+         if (blocksFull())
+            lsn = completed.get() / blocksize * blocksize;
+         else if (batch > 0)
+            lsn = batchLSN;
+         else
+            return;
+      }
+      flushTo(lsn);
+   }
+
+   /**
+    * Returns the log record with the specified LSN.
+    * The record is first written to disk if necessary,
+    * and is then read from its block.
+    * @param lsn the LSN of a log record
+    * @return the bytes of the record
+    */
+   public byte[] read(long lsn) {
+      flushTo(lsn);
+      Page p = new Page(blocksize, fm.ioAlignment());
+      fm.read(logBlock(lsn / blocksize), p);
+      int recpos = blocksize - (int) (lsn % blocksize);
+      return p.getBytes(recpos);
+   }
+
+   /**
+    * Returns the LSN just past the last record
+    * that has been appended to the log.
+    * Every record appended later has a greater LSN.
+    * @return the end of the log
+    */
+   public long endLSN() {
+      return tail.get();
+   }
+
+   /**
+    * Returns the size of the largest record that fits in a log block.
+    * @return the maximum length of a log record, in bytes
+    */
+   public int maxRecordLength() {
+      return blocksize - 2*Integer.BYTES;
    }
 
-   public Iterator<byte[]> iterator() {
-      flush();
-      return new LogIterator(fm, currentblk);
+   public LogIterator iterator() {
+      flushTo(tail.get());
+      return new LogIterator(fm, this, lastSavedLSN / blocksize);
+   }
+
+   /**
+    * Deletes the segments that lie entirely before the log record
+    * with the specified LSN.
+    * The caller must ensure that no earlier record will be read,
+    * as is the case after a quiescent checkpoint.
+    * @param lsn the LSN of a log record
+    */
+   public synchronized void truncate(long lsn) {
+      long segment = lsn / blocksize / segmentBlocks;
+      for (long s=firstSegment; s<segment; s++)
+         fm.delete(segmentName(s));
+      firstSegment = Math.max(firstSegment, segment);
+   }
+
+   /**
+    * Returns the number of the oldest block of the log.
+    */
+   long firstBlock() {
+      return firstSegment * segmentBlocks;
+   }
+
+   /**
+    * Returns the location of the specified block of the log,
+    * in its segment file.
+    */
+   BlockId logBlock(long blknum) {
+      return new BlockId(segmentName(blknum / segmentBlocks), (int) (blknum % segmentBlocks));
+   }
+
+   private String segmentName(long segment) {
+      return logfile + "." + segment;
+   }
+
+   /**
+    * Finds the segment files of the log, and returns the number
+    * of the last block of the log, or -1 if there are no segments.
+    * Empty segments at the end of the log are deleted.
+    */
+   private long findSegments() {
+      TreeSet<Long> segments = new TreeSet<>();
+      for (String filename : fm.files(logfile + ".")) {
+         try {
+            segments.add(Long.parseLong(filename.substring(logfile.length() + 1)));
+         }
+         catch (NumberFormatException e) {
+            // not a segment of this log
+         }
+      }
+      while (!segments.isEmpty() && fm.length(segmentName(segments.last())) == 0)
+         fm.delete(segmentName(segments.pollLast()));
+      if (segments.isEmpty())
+         return -1;
+      firstSegment = segments.first();
+      long last = segments.last();
+      return last * segmentBlocks + fm.length(segmentName(last)) - 1;
    }
 
    /**
@@ -64,41 +320,180 @@ public class LogMgr {
     * of the last-written record (the "boundary").
     * Storing the records backwards makes it easy to read
     * them in reverse order.
+    * The boundary of a block is set when the block is written.
     * @param logrec a byte buffer containing the bytes.
     * @return the LSN of the final value
     */
-   public synchronized int append(byte[] logrec) {
-      int boundary = logpage.getInt(0);
-      int recsize = logrec.length;
-      int bytesneeded = recsize + Integer.BYTES;
-      if (boundary - bytesneeded < Integer.BYTES) { // the log record doesn't fit,
-         flush();        // so move to the next block.
-         currentblk = appendNewBlock();
-         boundary = logpage.getInt(0);
+   public long append(byte[] logrec) {
+      int bytesneeded = logrec.length + Integer.BYTES;
+      if (logrec.length > maxRecordLength())
+         throw new RuntimeException("log record too large for a block");
+      long start, end;
+      do {
+         start = tail.get();
+         int used = (int) (start % blocksize);
+         if (used + bytesneeded <= blocksize - Integer.BYTES)
+            end = start + bytesneeded;
+         else // the log record doesn't fit, so move to the next block
+            end = (start / blocksize + 1) * blocksize + bytesneeded;
+      } while (!tail.compareAndSet(start, end));
+
+      long blknum = end / blocksize;
+      if (blknum > start / blocksize) {
+         // seal the old block
+         long oldblk = start / blocksize;
+         if (oldblk - LOG_PAGES >= lastSavedLSN / blocksize)
+            awaitPage(oldblk);
+         page(oldblk).view().putInt(0, blocksize - (int) (start % blocksize));
       }
-      int recpos = boundary - bytesneeded;
+      if (blknum - LOG_PAGES >= lastSavedLSN / blocksize)
+         awaitPage(blknum);
+      ByteBuffer bb = page(blknum).view();
+      int recpos = blocksize - (int) (end % blocksize);
+      bb.putInt(recpos, logrec.length);
+      bb.put(recpos + Integer.BYTES, logrec);
+      publish(start, end);
+      return end;
+   }
 
-      logpage.setBytes(recpos, logrec);
-      logpage.setInt(0, recpos); // the new boundary
-      latestLSN += 1;
-      return latestLSN;
+   /**
+    * Returns the log page that holds the specified block.
+    */
+   private Page page(long blknum) {
+      return pages[(int) (blknum % LOG_PAGES)];
    }
 
    /**
-    * Initialize the bytebuffer and append it to the log file.
+    * Waits until the block that last used the page of the specified block
+    * has been written.
     */
-   private BlockId appendNewBlock() {
-      BlockId blk = fm.append(logfile);     
-      logpage.setInt(0, fm.blockSize());
-      fm.write(blk, logpage);
-      return blk;
+   private synchronized void awaitPage(long blknum) {
+      while (blknum - LOG_PAGES >= lastSavedLSN / blocksize)
+         await();
    }
 
    /**
-    * Write the buffer to the log file.
+    * Records that the specified range of the log has been copied,
+    * and advances the completion watermark over every range
+    * that is now contiguous with it.
+    * Usually the watermark is at the start of the range,
+    * and it is simply moved to the end; a range that completes
+    * before the ones ahead of it is left for them to pass.
+    * The flusher is woken when the watermark passes the end of a block.
     */
-   private void flush() {
-      fm.write(currentblk, logpage);
-      lastSavedLSN = latestLSN;
+   private void publish(long start, long end) {
+      if (completed.compareAndSet(start, end))
+         advanced(start, end);
+      else
+         published.put(start, end);
+      while (!published.isEmpty()) {
+         long mark = completed.get();
+         Long next = published.get(mark);
+         if (next == null)
+            return;
+         if (completed.compareAndSet(mark, next)) {
+            published.remove(mark);
+            advanced(mark, next);
+         }
+      }
+   }
+
+   private void advanced(long mark, long next) {
+      if (next / blocksize > mark / blocksize)
+         synchronized (this) {
+            notifyAll();
+         }
+   }
+
+   /**
+    * Returns true if the watermark has passed the end of a block
+    * that has not been written yet.
+    */
+   private boolean blocksFull() {
+      return completed.get() / blocksize > lastSavedLSN / blocksize;
+   }
+
+   /**
+    * Writes the log up to the record with the specified LSN,
+    * and makes it durable.
+    * The caller first waits for the copies of all the records
+    * before it to complete.
+    * The full blocks are written in order from their pages,
+    * followed by a copy of the last block if the record is in it.
+    * The lock is released during the writes,
+    * so that appends can continue.
+    * @param lsn the LSN of a log record
+    */
+   private void flushTo(long lsn) {
+      while (completed.get() < lsn)
+         Thread.yield();
+      long firstblk, lastblk, target;
+      synchronized (this) {
+         checkFailure();
+         while (writing && lsn > lastSavedLSN)
+            await();
+         if (lsn <= lastSavedLSN)
+            return;
+         writing = true;
+         long upto = completed.get();
+         firstblk = lastSavedLSN / blocksize;
+         lastblk = upto / blocksize;
+         if (lsn <= lastblk * blocksize) {
+            // the record is in a full block
+            lastblk--;
+            target = (lastblk + 1) * blocksize;
+         }
+         else {
+            tailcopy.view().put(page(lastblk).view());
+            tailcopy.setInt(0, blocksize - (int) (upto % blocksize));
+            target = upto;
+         }
+      }
+      boolean written = false;
+      try {
+         for (long b=firstblk; b<=lastblk; b++) {
+            Page p = (b == target / blocksize) ? tailcopy : page(b);
+            fm.write(logBlock(b), p);
+            if (b % segmentBlocks == segmentBlocks - 1 || b == lastblk)
+               fm.sync(logBlock(b).fileName());
+         }
+         written = true;
+      }
+      catch (RuntimeException e) {
+         failure = e;
+         throw e;
+      }
+      finally {
+         synchronized (this) {
+            if (written) {
+               lastSavedLSN = target;
+               if (lastSavedLSN >= batchLSN)
+                  batch = 0;
+            }
+            writing = false;
+            notifyAll();
+         }
+      }
+   }
+
+   /**
+    * Waits on the log manager's lock until notified.
+    * Throws an exception if a write of the log has failed,
+    * before or during the wait.
+    */
+   private void await() {
+      checkFailure();
+      try {
+         wait();
+      }
+      catch(InterruptedException e) {
+         throw new RuntimeException("interrupted while waiting for the log");
+      }
+      checkFailure();
+   }
+
+   private void checkFailure() {
+      if (failure != null)
+         throw new RuntimeException("the log could not be written", failure);
    }
 }
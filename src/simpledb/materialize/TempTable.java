@@ -31,9 +31,12 @@ public class TempTable {
    
    /**
     * Open a table scan for the temporary table.
+    * Temporary tables are written and read in bulk,
+    * so the scan recycles a ring of buffers
+    * when the buffer pool is large enough to have one.
     */
    public UpdateScan open() {
-      return new TableScan(tx, tblname, layout);
+      return new TableScan(tx, tblname, layout, true);
    }
    
    public String tableName() {
@@ -33,10 +33,15 @@ public class ChunkScan implements Scan {
       this.layout = layout;
       this.startbnum = startbnum;
       this.endbnum   = endbnum;
-      for (int i=startbnum; i<=endbnum; i++) {
-         BlockId blk = new BlockId(filename, i);
+      List<BlockId> blks = new ArrayList<>();
+      for (int i=startbnum; i<=endbnum; i++)
+         blks.add(new BlockId(filename, i));
+      // read the whole chunk in one batch; the record pages then pin resident buffers
+      tx.pinAll(blks);
+      for (BlockId blk : blks)
          buffs.add(new RecordPage(tx, blk, layout));
-      }
+      for (BlockId blk : blks)
+         tx.unpin(blk);
       moveToBlock(startbnum);
    }
 
@@ -99,6 +104,13 @@ public class ChunkScan implements Scan {
          return new Constant(getString(fldname));
    }
 
+   /**
+    * @see simpledb.query.Scan#compareField(java.lang.String, simpledb.query.Constant)
+    */
+   public int compareField(String fldname, Constant val) {
+      return rp.compareField(currentslot, fldname, val);
+   }
+
   /**
     * @see simpledb.query.Scan#hasField(java.lang.String)
     */
@@ -1,5 +1,7 @@
 package simpledb.query;
 
+import simpledb.file.Page;
+
 /**
  * The class that denotes values stored in the database.
  * @author Edward Sciore
@@ -7,6 +9,7 @@ package simpledb.query;
 public class Constant implements Comparable<Constant> {
    private Integer ival = null;
    private String  sval = null;
+   private byte[]  encoded = null;
    
    public Constant(Integer ival) {
       this.ival = ival;
@@ -23,6 +26,18 @@ public class Constant implements Comparable<Constant> {
    public String asString() {
       return sval;
    }
+
+   /**
+    * Returns the string value encoded in the page charset,
+    * for comparing against stored strings in place.
+    * The encoding is computed once and cached.
+    * @return the encoded bytes of the string value
+    */
+   public byte[] asBytes() {
+      if (encoded == null)
+         encoded = sval.getBytes(Page.CHARSET);
+      return encoded;
+   }
    
    public boolean equals(Object obj) {
       if (obj == null && (ival != null || sval != null)) {
@@ -33,6 +48,10 @@ public class Constant implements Comparable<Constant> {
    }
    
    public int compareTo(Constant c) {
+      // integers sort before strings, so that constants of
+      // different types compare unequal, as they do in equals
+      if ((ival == null) != (c.ival == null))
+         return (ival != null) ? -1 : 1;
       return (ival != null) ? ival.compareTo(c.ival) : sval.compareTo(c.sval);
    }
    
@@ -43,6 +43,21 @@ public interface Scan {
     * @return the value of that field, expressed as a Constant.
     */
    public Constant getVal(String fldname);
+
+   /**
+    * Compare the value of the specified field in the current record
+    * with the specified constant, as Constant.compareTo would.
+    * Scans that can compare the stored value in place,
+    * without creating a Constant for it, override this method.
+    * @param fldname the name of the field
+    * @param val the constant to compare with
+    * @return a negative number, zero, or a positive number
+    *         as the field's value is less than, equal to,
+    *         or greater than the constant
+    */
+   public default int compareField(String fldname, Constant val) {
+      return getVal(fldname).compareTo(val);
+   }
    
    /**
     * Return true if the scan has the specified field.
@@ -50,6 +50,10 @@ public class SelectScan implements UpdateScan {
       return s.getVal(fldname);
    }
 
+   public int compareField(String fldname, Constant val) {
+      return s.compareField(fldname, val);
+   }
+
 	public boolean hasField(String fldname) {
 		return s.hasField(fldname);
 	}
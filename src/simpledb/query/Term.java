@@ -32,6 +32,11 @@ public class Term {
     * @return true if both expressions have the same value in the scan
     */
    public boolean isSatisfied(Scan s) {
+      // compare a field with a constant in place, without reading the field's value
+      if (lhs.isFieldName() && !rhs.isFieldName())
+         return isTermSatisfied(s.compareField(lhs.asFieldName(), rhs.asConstant()));
+      if (rhs.isFieldName() && !lhs.isFieldName())
+         return isTermSatisfied(-Integer.signum(s.compareField(rhs.asFieldName(), lhs.asConstant())));
       Constant lhsval = lhs.evaluate(s);
       Constant rhsval = rhs.evaluate(s);
       return isTermSatisfied(lhsval, rhsval);
@@ -65,23 +70,34 @@ public class Term {
     * @return
     */
    private boolean isTermSatisfied(Constant lhsval, Constant rhsval) {
+      return isTermSatisfied(lhsval.compareTo(rhsval));
+   }
+
+   /**
+    * Helper method evaluating the term's opr on the result of
+    * comparing the lhs with the rhs
+    * 
+    * @param cmp the sign of the comparison of lhs with rhs
+    * @return
+    */
+   private boolean isTermSatisfied(int cmp) {
       String opval = op.getVal();
       switch (opval) {
       case "=":
-         return rhsval.equals(lhsval);
+         return cmp == 0;
       case "!=":
       case "<>":
-         return !rhsval.equals(lhsval);
+         return cmp != 0;
       case "<":
-         return lhsval.compareTo(rhsval) < 0;
+         return cmp < 0;
       case ">":
-         return lhsval.compareTo(rhsval) > 0;
+         return cmp > 0;
       case "<=":
-         return lhsval.compareTo(rhsval) <= 0;
+         return cmp <= 0;
       case ">=":
-         return lhsval.compareTo(rhsval) >= 0;
+         return cmp >= 0;
       default:
-         throw new RuntimeException("Unknown term: " + lhsval + " " + opval + " " + rhsval);
+         throw new RuntimeException("Unknown term: " + this);
       }
    }
 
@@ -2,6 +2,7 @@ package simpledb.record;
 
 import static java.sql.Types.INTEGER;
 import simpledb.file.*;
+import simpledb.query.Constant;
 import simpledb.tx.Transaction;
 
 /**
@@ -43,6 +44,30 @@ public class RecordPage {
       return tx.getString(blk, fldpos);
    }
 
+   /**
+    * Compare the value stored in the specified field
+    * of the specified slot with a constant.
+    * String values are compared in place, byte by byte,
+    * so the comparison does not allocate.
+    * If the constant's type differs from the field's,
+    * the values are compared as constants.
+    * @param fldname the name of the field
+    * @param val the constant to compare with
+    * @return the sign of the comparison, as in Constant.compareTo
+    */
+   public int compareField(int slot, String fldname, Constant val) {
+      int fldpos = offset(slot) + layout.offset(fldname);
+      boolean isint = layout.schema().type(fldname) == INTEGER;
+      if (isint && val.asString() == null)
+         return Integer.compare(tx.getInt(blk, fldpos), val.asInt());
+      else if (!isint && val.asString() != null)
+         return tx.compareString(blk, fldpos, val.asBytes());
+      else if (isint)
+         return new Constant(tx.getInt(blk, fldpos)).compareTo(val);
+      else
+         return new Constant(tx.getString(blk, fldpos)).compareTo(val);
+   }
+
    /**
     * Store an integer at the specified field
     * of the specified slot.
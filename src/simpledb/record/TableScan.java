@@ -1,6 +1,7 @@
 package simpledb.record;
 
 import static java.sql.Types.INTEGER;
+import simpledb.buffer.BufferRing;
 import simpledb.file.BlockId;
 import simpledb.query.*;
 import simpledb.tx.Transaction;
@@ -16,12 +17,31 @@ public class TableScan implements UpdateScan {
    private RecordPage rp;
    private String filename;
    private int currentslot;
+   private boolean readingAhead = false;
+   private BufferRing ring;
 
    public TableScan(Transaction tx, String tblname, Layout layout) {
+      this(tx, tblname, layout, false);
+   }
+
+   /**
+    * Creates a scan of the table.
+    * A scan of a table that is large relative to the buffer pool,
+    * or a bulk scan, reads and writes its blocks in order
+    * through a small ring of buffers, so that it does not
+    * replace the hot blocks in the rest of the pool.
+    * Positioning the scan at a specific record does not use the ring.
+    * @param bulk true if the scan should use a ring whatever
+    *             the current size of the table, as when the
+    *             table is a temporary table that is being filled
+    */
+   public TableScan(Transaction tx, String tblname, Layout layout, boolean bulk) {
       this.tx = tx;
       this.layout = layout;
       filename = tblname + ".tbl";
-      if (tx.size(filename) == 0)
+      int size = tx.size(filename);
+      ring = tx.newRing(bulk ? Integer.MAX_VALUE : size);
+      if (size == 0)
          moveToNewBlock();
       else 
          moveToBlock(0);
@@ -31,6 +51,7 @@ public class TableScan implements UpdateScan {
 
    public void beforeFirst() {
       moveToBlock(0);
+      readingAhead = false;
    }
 
    public boolean next() {
@@ -38,6 +59,11 @@ public class TableScan implements UpdateScan {
       while (currentslot < 0) {
          if (atLastBlock())
             return false;
+         if (!readingAhead) {
+            // the scan is sequential once it leaves its first block
+            tx.readAhead(new BlockId(filename, rp.block().number()+1), ring);
+            readingAhead = true;
+         }
          moveToBlock(rp.block().number()+1);
          currentslot = rp.nextAfter(currentslot);
       }
@@ -59,6 +85,10 @@ public class TableScan implements UpdateScan {
          return new Constant(getString(fldname));
    }
 
+   public int compareField(String fldname, Constant val) {
+      return rp.compareField(currentslot, fldname, val);
+   }
+
    public boolean hasField(String fldname) {
       return layout.schema().hasField(fldname);
    }
@@ -105,6 +135,7 @@ public class TableScan implements UpdateScan {
       BlockId blk = new BlockId(filename, rid.blockNumber());
       rp = new RecordPage(tx, blk, layout);
       currentslot = rid.slot();
+      readingAhead = false;
    }
 
    public RID getRid() {
@@ -116,18 +147,28 @@ public class TableScan implements UpdateScan {
    private void moveToBlock(int blknum) {
       close();
       BlockId blk = new BlockId(filename, blknum);
-      rp = new RecordPage(tx, blk, layout);
+      rp = ringPage(blk);
       currentslot = -1;
    }
 
    private void moveToNewBlock() {
       close();
       BlockId blk = tx.append(filename);
-      rp = new RecordPage(tx, blk, layout);
+      rp = ringPage(blk);
       rp.format();
       currentslot = -1;
    }
 
+   private RecordPage ringPage(BlockId blk) {
+      if (ring == null)
+         return new RecordPage(tx, blk, layout);
+      // read the block into the ring; the record page then pins the resident buffer
+      tx.pin(blk, ring);
+      RecordPage page = new RecordPage(tx, blk, layout);
+      tx.unpin(blk);
+      return page;
+   }
+
    private boolean atLastBlock() {
       return rp.block().number() == tx.size(filename) - 1;
    }
@@ -1,10 +1,13 @@
 package simpledb.server;
 
 import java.io.File;
+import simpledb.file.Durability;
 import simpledb.file.FileMgr;
 import simpledb.log.LogMgr;
 import simpledb.buffer.BufferMgr;
+import simpledb.buffer.Replacement;
 import simpledb.tx.Transaction;
+import simpledb.tx.recovery.RecoveryMgr;
 import simpledb.metadata.MetadataMgr;
 import simpledb.plan.*;
 import simpledb.index.planner.IndexUpdatePlanner;
@@ -19,6 +22,22 @@ public class SimpleDB {
    public static int BLOCK_SIZE = 400;
    public static int BUFFER_SIZE = 8;
    public static String LOG_FILE = "simpledb.log";
+   public static int LOG_SEGMENT_BLOCKS = 256;
+   public static boolean MMAP_IO = false;
+   public static int MMAP_REGION_BLOCKS = FileMgr.REGION_BLOCKS;
+   public static Durability DURABILITY = Durability.GROUP_FSYNC;
+   public static int EXTENT_BLOCKS = 8;
+   public static boolean DIRECT_IO = false;
+   public static Replacement REPLACEMENT = Replacement.LRU;
+   public static double CLEAN_TARGET = 0.25;
+   public static long CLEAN_INTERVAL = 100;
+   public static int READ_AHEAD = 8;
+   public static String WARM_LIST = "simpledb.warm";
+   public static long VICTIM_CACHE_BYTES = 0;
+   public static long COMMIT_INTERVAL = 2;
+   public static int COMMIT_BATCH = 8;
+   public static boolean NO_FORCE = false;
+   public static long CHECKPOINT_INTERVAL = 30000;
 
    private FileMgr fm;
    private BufferMgr bm;
@@ -35,9 +54,19 @@ public class SimpleDB {
     */
    public SimpleDB(String dirname, int blocksize, int buffsize) {
       File dbDirectory = new File(dirname);
-      fm = new FileMgr(dbDirectory, blocksize);
-      lm = new LogMgr(fm, LOG_FILE);
-      bm = new BufferMgr(fm, lm, buffsize);
+      fm = new FileMgr(dbDirectory, blocksize, MMAP_IO, MMAP_REGION_BLOCKS, DURABILITY, EXTENT_BLOCKS, DIRECT_IO);
+      Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown));
+      lm = new LogMgr(fm, LOG_FILE, LOG_SEGMENT_BLOCKS);
+      if (COMMIT_BATCH > 1)
+         lm.startGroupCommit(COMMIT_INTERVAL, COMMIT_BATCH);
+      bm = new BufferMgr(fm, lm, buffsize, REPLACEMENT);
+      bm.setNoForce(NO_FORCE);
+      if (VICTIM_CACHE_BYTES > 0)
+         bm.setVictimCache(VICTIM_CACHE_BYTES);
+      if (CLEAN_INTERVAL > 0)
+         bm.startCleaner(CLEAN_TARGET, CLEAN_INTERVAL);
+      if (READ_AHEAD > 0)
+         bm.startReadAhead(READ_AHEAD);
    }
 
    /**
@@ -48,6 +77,8 @@ public class SimpleDB {
     */
    public SimpleDB(String dirname) {
       this(dirname, BLOCK_SIZE, BUFFER_SIZE);
+      if (WARM_LIST != null)
+         bm.setWarmList(WARM_LIST);
       Transaction tx = newTx();
       boolean isnew = fm.isNew();
       if (isnew)
@@ -55,6 +86,7 @@ public class SimpleDB {
       else {
          System.out.println("recovering existing database");
          tx.recover();
+         bm.warmUp();
       }
       mdm = new MetadataMgr(isnew, tx);
       //QueryPlanner qp = new BasicQueryPlanner(mdm);
@@ -63,6 +95,28 @@ public class SimpleDB {
       UpdatePlanner up = new IndexUpdatePlanner(mdm);
       planner = new Planner(qp, up);
       tx.commit();
+      if (CHECKPOINT_INTERVAL > 0)
+         RecoveryMgr.startCheckpointer(lm, bm, CHECKPOINT_INTERVAL);
+   }
+
+   /**
+    * Saves the buffer pool's warm list and releases
+    * the resources held by the database files.
+    * This method is called automatically when the JVM exits.
+    */
+   public void shutdown() {
+      bm.saveWarmList();
+      fm.trimExtents();
+   }
+
+   /**
+    * Changes the number of buffers in the buffer pool
+    * while the server is running.
+    * Shrinking the pool waits for buffers to become unpinned.
+    * @param numbuffs the new number of buffers
+    */
+   public void resizeBufferPool(int numbuffs) {
+      bm.resize(numbuffs);
    }
 
    /**
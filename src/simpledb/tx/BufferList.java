@@ -33,11 +33,33 @@ class BufferList {
     * @param blk a reference to the disk block
     */
    void pin(BlockId blk) {
-      Buffer buff = bm.pin(blk);
+      pin(blk, null);
+   }
+
+   /**
+    * Pin the block, reading it into a buffer of the specified ring
+    * if it is not in the pool, and keep track of the buffer internally.
+    * @param blk a reference to the disk block
+    * @param ring the ring, or null
+    */
+   void pin(BlockId blk, BufferRing ring) {
+      Buffer buff = bm.pin(blk, ring);
       buffers.put(blk, buff);
       pins.add(blk);
    }
    
+   /**
+    * Pin the blocks as a batch and keep track of the buffers internally.
+    * @param blks references to distinct disk blocks
+    */
+   void pinAll(List<BlockId> blks) {
+      List<Buffer> buffs = bm.pinAll(blks);
+      for (int i=0; i<blks.size(); i++) {
+         buffers.put(blks.get(i), buffs.get(i));
+         pins.add(blks.get(i));
+      }
+   }
+   
    /**
     * Unpin the specified block.
     * @param blk a reference to the disk block
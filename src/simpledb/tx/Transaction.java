@@ -1,5 +1,6 @@
 package simpledb.tx;
 
+import java.util.List;
 import simpledb.file.*;
 import simpledb.log.LogMgr;
 import simpledb.buffer.*;
@@ -38,7 +39,7 @@ public class Transaction {
       this.fm = fm;
       this.bm = bm;
       txnum       = nextTxNumber();
-      recoveryMgr = new RecoveryMgr(this, txnum, lm, bm);
+      recoveryMgr = new RecoveryMgr(this, txnum, fm, lm, bm);
       concurMgr   = new ConcurrencyMgr();
       mybuffers = new BufferList(bm);
    }
@@ -91,6 +92,58 @@ public class Transaction {
    public void pin(BlockId blk) {
       mybuffers.pin(blk);
    }
+
+   /**
+    * Pin the specified block, as part of a scan that
+    * recycles the buffers of the specified ring.
+    * @param blk a reference to the disk block
+    * @param ring the scan's buffer ring, or null
+    */
+   public void pin(BlockId blk, BufferRing ring) {
+      mybuffers.pin(blk, ring);
+   }
+
+   /**
+    * Return a buffer ring for a scan that will access
+    * the specified number of blocks in order,
+    * or null if the scan is small enough to use the whole pool.
+    * @param numblocks the number of blocks the scan will access
+    * @return a new buffer ring, or null
+    */
+   public BufferRing newRing(int numblocks) {
+      return bm.newRing(numblocks);
+   }
+   
+   /**
+    * Pin the specified blocks as a batch,
+    * so that the ones that are not in the buffer pool
+    * can be read from disk together.
+    * @param blks references to distinct disk blocks
+    */
+   public void pinAll(List<BlockId> blks) {
+      mybuffers.pinAll(blks);
+   }
+   
+   /**
+    * Hint that the blocks of a file are about to be read in order,
+    * starting at the specified block, so that the buffer manager
+    * can read them ahead.
+    * No block is pinned.
+    * @param blk a reference to the first block to be read
+    */
+   public void readAhead(BlockId blk) {
+      bm.readAhead(blk);
+   }
+
+   /**
+    * Hint that the blocks of a file are about to be read in order
+    * through the specified buffer ring.
+    * @param blk a reference to the first block to be read
+    * @param ring the scan's buffer ring, or null
+    */
+   public void readAhead(BlockId blk, BufferRing ring) {
+      bm.readAhead(blk, ring);
+   }
    
    /**
     * Unpin the specified block.
@@ -132,6 +185,23 @@ public class Transaction {
       return buff.contents().getString(offset);
    }
    
+   /**
+    * Compare the string stored at the specified offset
+    * of the specified block with an encoded key,
+    * in place and without allocating.
+    * The method first obtains an SLock on the block.
+    * @param blk a reference to a disk block
+    * @param offset the byte offset within the block
+    * @param key the key, encoded in the page charset
+    * @return the sign of the comparison, as in String.compareTo
+    * @see simpledb.file.Page#compareString(int, byte[])
+    */
+   public int compareString(BlockId blk, int offset, byte[] key) {
+      concurMgr.sLock(blk);
+      Buffer buff = mybuffers.getBuffer(blk);
+      return buff.contents().compareString(offset, key);
+   }
+   
    /**
     * Store an integer at the specified offset 
     * of the specified block.
@@ -148,7 +218,7 @@ public class Transaction {
    public void setInt(BlockId blk, int offset, int val, boolean okToLog) {
       concurMgr.xLock(blk);
       Buffer buff = mybuffers.getBuffer(blk);
-      int lsn = -1;
+      long lsn = -1;
       if (okToLog)
          lsn = recoveryMgr.setInt(buff, offset, val);
       Page p = buff.contents();
@@ -172,7 +242,7 @@ public class Transaction {
    public void setString(BlockId blk, int offset, String val, boolean okToLog) {
       concurMgr.xLock(blk);
       Buffer buff = mybuffers.getBuffer(blk);
-      int lsn = -1;
+      long lsn = -1;
       if (okToLog)
          lsn = recoveryMgr.setString(buff, offset, val);
       Page p = buff.contents();
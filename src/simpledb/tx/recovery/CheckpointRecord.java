@@ -1,6 +1,6 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
+import simpledb.file.*;
 import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
@@ -24,12 +24,32 @@ public class CheckpointRecord implements LogRecord {
       return -1; // dummy value
    }
 
+   /**
+    * Checkpoint records belong to no transaction's chain.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+
+   /**
+    * Checkpoint records modify no block.
+    */
+   public BlockId block() {
+      return null;
+   }
+
    /**
     * Does nothing, because a checkpoint record
     * contains no undo information.
     */
    public void undo(Transaction tx) {}
 
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(Transaction tx) {}
+
    public String toString() {
       return "<CHECKPOINT>";
    }
@@ -40,7 +60,7 @@ public class CheckpointRecord implements LogRecord {
     * and nothing else.
     * @return the LSN of the last log value
     */
-   public static int writeToLog(LogMgr lm) {
+   public static long writeToLog(LogMgr lm) {
       byte[] rec = new byte[Integer.BYTES];
       Page p = new Page(rec);
       p.setInt(0, CHECKPOINT);
@@ -0,0 +1,60 @@
+package simpledb.tx.recovery;
+
+import simpledb.log.LogMgr;
+import simpledb.buffer.BufferMgr;
+
+/**
+ * A background thread that takes nonquiescent checkpoints
+ * at a fixed interval, so that the log that recovery must read
+ * stays bounded however long the system runs.
+ * Each checkpoint flushes the buffers that have been dirty
+ * since before the previous checkpoint began.
+ * A failed checkpoint does not stop the thread: the failure is
+ * recorded and reported, and the checkpoint is retried
+ * at the next interval. The warm list is saved separately,
+ * so that failing to save it does not fail the checkpoint.
+ */
+class Checkpointer extends Thread {
+   private LogMgr lm;
+   private BufferMgr bm;
+   private long interval;
+
+   /**
+    * @param lm the log manager
+    * @param bm the buffer manager
+    * @param interval the time between checkpoints, in milliseconds
+    */
+   Checkpointer(LogMgr lm, BufferMgr bm, long interval) {
+      super("checkpointer");
+      this.lm = lm;
+      this.bm = bm;
+      this.interval = interval;
+      setDaemon(true);
+   }
+
+   public void run() {
+      long previous = 0;
+      try {
+         while (true) {
+            Thread.sleep(interval);
+            try {
+               previous = RecoveryMgr.checkpoint(lm, bm, previous);
+               RecoveryMgr.checkpointFailed(null);
+            }
+            catch(RuntimeException e) {
+               RecoveryMgr.checkpointFailed(e);
+               System.err.println("checkpoint failed: " + e);
+            }
+            try {
+               bm.saveWarmList();
+            }
+            catch(RuntimeException e) {
+               // the warm list is only a hint; it is saved again next time
+            }
+         }
+      }
+      catch(InterruptedException e) {
+         // the checkpointer has been stopped
+      }
+   }
+}
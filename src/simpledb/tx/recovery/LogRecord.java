@@ -1,6 +1,6 @@
 package simpledb.tx.recovery;
 
-import simpledb.file.Page;
+import simpledb.file.*;
 import simpledb.tx.Transaction;
 
 /**
@@ -10,7 +10,7 @@ import simpledb.tx.Transaction;
 public interface LogRecord {
    static final int CHECKPOINT = 0, START = 1,
          COMMIT = 2, ROLLBACK  = 3,
-         SETINT = 4, SETSTRING = 5;
+         SETINT = 4, SETSTRING = 5, NQCKPT = 6;
 
    /**
     * Returns the log record's type. 
@@ -25,6 +25,22 @@ public interface LogRecord {
     */
    int txNumber();
 
+   /**
+    * Returns the LSN of the previous log record written by
+    * the same transaction, or a negative value if there is none.
+    * The records of a transaction are thus chained
+    * backwards from its most recent one.
+    * @return the LSN of the transaction's previous log record
+    */
+   long prevLSN();
+
+   /**
+    * Returns the block modified by the operation
+    * encoded by this log record, or null if there is none.
+    * @return the modified block
+    */
+   BlockId block();
+
    /**
     * Undoes the operation encoded by this log record.
     * The only log record types for which this method
@@ -33,6 +49,15 @@ public interface LogRecord {
     */
    void undo(Transaction tx);
 
+   /**
+    * Redoes the operation encoded by this log record,
+    * by writing the new value it saved.
+    * The only log record types for which this method
+    * does anything interesting are SETINT and SETSTRING.
+    * @param tx the transaction that is performing the redo.
+    */
+   void redo(Transaction tx);
+
    /**
     * Interpret the bytes returned by the log iterator.
     * @param bytes
@@ -53,6 +78,8 @@ public interface LogRecord {
          return new SetIntRecord(p);
       case SETSTRING: 
          return new SetStringRecord(p);
+      case NQCKPT: 
+         return new NQCheckpointRecord(p);
       default:
          return null;
       }
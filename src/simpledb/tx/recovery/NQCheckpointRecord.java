@@ -0,0 +1,188 @@
+package simpledb.tx.recovery;
+
+import java.util.*;
+import simpledb.file.*;
+import simpledb.log.LogMgr;
+import simpledb.tx.Transaction;
+
+/**
+ * The NQCKPT log record, written by a nonquiescent checkpoint.
+ * It records the LSN of the end of the log when the checkpoint began,
+ * the transactions that were active, with the LSN at which
+ * each one started, and the dirty page table.
+ * A checkpoint whose tables do not fit in one log record
+ * is written as several NQCKPT records with the same begin LSN;
+ * only the last of them is marked as such, so recovery can tell
+ * a complete checkpoint from one that was interrupted.
+ */
+public class NQCheckpointRecord implements LogRecord {
+   private long beginlsn;
+   private boolean last;
+   private Map<Integer,Long> activeTxs = new HashMap<>();
+   private Map<BlockId,Long> dirtyPages = new HashMap<>();
+   private static final int HEADER = 4*Integer.BYTES + Long.BYTES;
+   private static final int TXENTRY = Integer.BYTES + Long.BYTES;
+
+   public NQCheckpointRecord(Page p) {
+      int bpos = Integer.BYTES;
+      beginlsn = p.getLong(bpos);
+      int lpos = bpos + Long.BYTES;
+      last = p.getInt(lpos) != 0;
+      int pos = lpos + Integer.BYTES;
+      int numtxs = p.getInt(pos);
+      pos += Integer.BYTES;
+      for (int i=0; i<numtxs; i++) {
+         activeTxs.put(p.getInt(pos), p.getLong(pos + Integer.BYTES));
+         pos += TXENTRY;
+      }
+      int numpages = p.getInt(pos);
+      pos += Integer.BYTES;
+      for (int i=0; i<numpages; i++) {
+         String filename = p.getString(pos);
+         pos += Page.maxLength(filename.length());
+         BlockId blk = new BlockId(filename, p.getInt(pos));
+         pos += Integer.BYTES;
+         dirtyPages.put(blk, p.getLong(pos));
+         pos += Long.BYTES;
+      }
+   }
+
+   public int op() {
+      return NQCKPT;
+   }
+
+   /**
+    * Checkpoint records have no associated transaction,
+    * and so the method returns a "dummy", negative txid.
+    */
+   public int txNumber() {
+      return -1; // dummy value
+   }
+
+   /**
+    * Checkpoint records belong to no transaction's chain.
+    */
+   public long prevLSN() {
+      return -1;
+   }
+
+   public BlockId block() {
+      return null;
+   }
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no undo information.
+    */
+   public void undo(Transaction tx) {}
+
+   /**
+    * Does nothing, because a checkpoint record
+    * contains no redo information.
+    */
+   public void redo(Transaction tx) {}
+
+   /**
+    * Returns the end of the log when the checkpoint began,
+    * which identifies the checkpoint.
+    * @return the checkpoint's begin LSN
+    */
+   public long beginLSN() {
+      return beginlsn;
+   }
+
+   /**
+    * Returns true if this is the last record of its checkpoint.
+    * @return true if the checkpoint is complete
+    */
+   public boolean isLast() {
+      return last;
+   }
+
+   /**
+    * Returns this record's part of the active transaction table,
+    * which maps each active transaction to the LSN at which it started.
+    * @return the active transactions
+    */
+   public Map<Integer,Long> activeTxs() {
+      return activeTxs;
+   }
+
+   /**
+    * Returns this record's part of the dirty page table,
+    * which maps each dirty block to its recovery LSN.
+    * @return the dirty pages
+    */
+   public Map<BlockId,Long> dirtyPages() {
+      return dirtyPages;
+   }
+
+   public String toString() {
+      return "<NQCKPT " + beginlsn + " " + activeTxs.keySet() + " " + dirtyPages.keySet() + ">";
+   }
+
+   /**
+    * A static method to write a checkpoint to the log.
+    * Each NQCKPT record contains the operator, the begin LSN,
+    * the flag marking the last record, and as many entries of the
+    * active transaction table and then of the dirty page table
+    * as fit in a log record, each table preceded by its
+    * number of entries.
+    * @return the LSN of the last record of the checkpoint
+    */
+   public static long writeToLog(LogMgr lm, long beginlsn, Map<Integer,Long> activetxs, Map<BlockId,Long> dirtypages) {
+      List<Map.Entry<Integer,Long>> txs = new ArrayList<>(activetxs.entrySet());
+      List<Map.Entry<BlockId,Long>> pages = new ArrayList<>(dirtypages.entrySet());
+      int maxlen = lm.maxRecordLength();
+      int t = 0, d = 0;
+      while (true) {
+         int reclen = HEADER;
+         int numtxs = 0, numpages = 0;
+         while (t + numtxs < txs.size() && reclen + TXENTRY <= maxlen) {
+            reclen += TXENTRY;
+            numtxs++;
+         }
+         while (t + numtxs == txs.size() && d + numpages < pages.size()
+               && reclen + pageEntryLength(pages.get(d + numpages).getKey()) <= maxlen) {
+            reclen += pageEntryLength(pages.get(d + numpages).getKey());
+            numpages++;
+         }
+         boolean last = t + numtxs == txs.size() && d + numpages == pages.size();
+         if (!last && numtxs == 0 && numpages == 0)
+            throw new RuntimeException("checkpoint entry too large for a log record");
+         byte[] rec = new byte[reclen];
+         Page p = new Page(rec);
+         p.setInt(0, NQCKPT);
+         int bpos = Integer.BYTES;
+         p.setLong(bpos, beginlsn);
+         int lpos = bpos + Long.BYTES;
+         p.setInt(lpos, last ? 1 : 0);
+         int pos = lpos + Integer.BYTES;
+         p.setInt(pos, numtxs);
+         pos += Integer.BYTES;
+         for (int i=0; i<numtxs; i++, t++) {
+            p.setInt(pos, txs.get(t).getKey());
+            p.setLong(pos + Integer.BYTES, txs.get(t).getValue());
+            pos += TXENTRY;
+         }
+         p.setInt(pos, numpages);
+         pos += Integer.BYTES;
+         for (int i=0; i<numpages; i++, d++) {
+            BlockId blk = pages.get(d).getKey();
+            p.setString(pos, blk.fileName());
+            pos += Page.maxLength(blk.fileName().length());
+            p.setInt(pos, blk.number());
+            pos += Integer.BYTES;
+            p.setLong(pos, pages.get(d).getValue());
+            pos += Long.BYTES;
+         }
+         long lsn = lm.append(rec);
+         if (last)
+            return lsn;
+      }
+   }
+
+   private static int pageEntryLength(BlockId blk) {
+      return Page.maxLength(blk.fileName().length()) + Integer.BYTES + Long.BYTES;
+   }
+}
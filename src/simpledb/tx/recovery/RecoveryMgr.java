@@ -1,6 +1,7 @@
 package simpledb.tx.recovery;
 
 import java.util.*;
+import java.util.concurrent.*;
 import simpledb.file.*;
 import simpledb.log.*;
 import simpledb.buffer.*;
@@ -9,54 +10,142 @@ import static simpledb.tx.recovery.LogRecord.*;
 
 /**
  * The recovery manager.  Each transaction has its own recovery manager.
+ * <p>
+ * Update records hold both the old and the new value,
+ * so the log can undo and redo them.
+ * Under the buffer manager's no-force policy a commit writes
+ * only the log, and the modified pages reach disk later;
+ * recovery therefore repeats history before undoing
+ * the transactions that did not finish.
+ * <p>
+ * The recovery managers share a table of the active transactions.
+ * Nonquiescent checkpoints, taken in the background while
+ * transactions run, record it along with the buffer manager's
+ * dirty page table; together they bound how far back
+ * recovery must read the log.
  * @author Edward Sciore
  */
 public class RecoveryMgr {
+   private FileMgr fm;
    private LogMgr lm;
    private BufferMgr bm;
    private Transaction tx;
    private int txnum;
+   private long lastLSN;
+   private static ConcurrentMap<Integer,Long> activeTxs = new ConcurrentHashMap<>();
+   private static volatile RuntimeException checkpointFailure = null;
 
    /**
     * Create a recovery manager for the specified transaction.
     * @param txnum the ID of the specified transaction
     */
-   public RecoveryMgr(Transaction tx, int txnum, LogMgr lm, BufferMgr bm) {
+   public RecoveryMgr(Transaction tx, int txnum, FileMgr fm, LogMgr lm, BufferMgr bm) {
       this.tx = tx;
       this.txnum = txnum;
+      this.fm = fm;
       this.lm = lm;
       this.bm = bm;
-      StartRecord.writeToLog(lm, txnum);
+      activeTxs.put(txnum, lm.endLSN());
+      lastLSN = StartRecord.writeToLog(lm, txnum, -1);
    }
 
    /**
     * Write a commit record to the log, and flushes it to disk.
+    * The transaction's buffers are flushed first
+    * only as far as the buffer manager's policy requires.
     */
    public void commit() {
-      bm.flushAll(txnum);
-      int lsn = CommitRecord.writeToLog(lm, txnum);
-      lm.flush(lsn);
+      lm.startCommit();
+      bm.flushCommitted(txnum);
+      long lsn = CommitRecord.writeToLog(lm, txnum, lastLSN);
+      lm.flushCommit(lsn);
+      activeTxs.remove(txnum);
    }
 
    /**
     * Write a rollback record to the log and flush it to disk.
+    * The restored buffers are always flushed first,
+    * so that recovery need not redo a rolled back transaction.
     */
    public void rollback() {
       doRollback();
+      lm.startCommit();
       bm.flushAll(txnum);
-      int lsn = RollbackRecord.writeToLog(lm, txnum);
-      lm.flush(lsn);
+      long lsn = RollbackRecord.writeToLog(lm, txnum, lastLSN);
+      lm.flushCommit(lsn);
+      activeTxs.remove(txnum);
    }
 
    /**
     * Recover uncompleted transactions from the log
     * and then write a quiescent checkpoint record to the log and flush it.
+    * The log segments before the checkpoint are no longer needed,
+    * and are deleted.
+    * The buffer manager's warm list is saved with the checkpoint.
     */
    public void recover() {
       doRecover();
       bm.flushAll(txnum);
-      int lsn = CheckpointRecord.writeToLog(lm);
+      long lsn = CheckpointRecord.writeToLog(lm);
       lm.flush(lsn);
+      lm.truncate(lsn);
+      bm.saveWarmList();
+   }
+
+   /**
+    * Starts a thread that takes a nonquiescent checkpoint
+    * at the specified interval, and saves the buffer manager's
+    * warm list after each one.
+    * A checkpoint that fails is retried at the next interval.
+    * It must not be started before recovery is complete.
+    * @param lm the log manager
+    * @param bm the buffer manager
+    * @param interval the time between checkpoints, in milliseconds
+    */
+   public static void startCheckpointer(LogMgr lm, BufferMgr bm, long interval) {
+      new Checkpointer(lm, bm, interval).start();
+   }
+
+   /**
+    * Returns the exception that made the most recent
+    * background checkpoint fail, or null if it succeeded.
+    * @return the failure of the last checkpoint, or null
+    */
+   public static RuntimeException checkpointFailure() {
+      return checkpointFailure;
+   }
+
+   static void checkpointFailed(RuntimeException e) {
+      checkpointFailure = e;
+   }
+
+   /**
+    * Take a nonquiescent checkpoint, without blocking
+    * the running transactions.
+    * The end of the log is noted first, as the checkpoint's begin LSN.
+    * The unpinned buffers that have been dirty since before the
+    * specified LSN are flushed, and then the active transaction
+    * table and the dirty page table are read, in that order,
+    * and written to the log in NQCKPT records, which are flushed.
+    * <p>
+    * Recovery must read the log back to the redo point, which is
+    * the earliest of the begin LSN, the start of each active transaction
+    * and the recovery LSN of each dirty page.
+    * The log segments before the redo point are deleted.
+    * @param lm the log manager
+    * @param bm the buffer manager
+    * @param flushbefore the LSN before which dirty buffers are flushed
+    * @return the checkpoint's begin LSN
+    */
+   public static long checkpoint(LogMgr lm, BufferMgr bm, long flushbefore) {
+      long beginlsn = lm.endLSN();
+      bm.flushOlderThan(flushbefore);
+      Map<Integer,Long> txs = new HashMap<>(activeTxs);
+      Map<BlockId,Long> dirtypages = bm.dirtyPages();
+      long lsn = NQCheckpointRecord.writeToLog(lm, beginlsn, txs, dirtypages);
+      lm.flush(lsn);
+      lm.truncate(redoPoint(beginlsn, txs, dirtypages));
+      return beginlsn;
    }
 
    /**
@@ -65,10 +154,11 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setInt(Buffer buff, int offset, int newval) {
+   public long setInt(Buffer buff, int offset, int newval) {
       int oldval = buff.contents().getInt(offset);
       BlockId blk = buff.block();
-      return SetIntRecord.writeToLog(lm, txnum, blk, offset, oldval);
+      lastLSN = SetIntRecord.writeToLog(lm, txnum, lastLSN, blk, offset, oldval, newval);
+      return lastLSN;
    }
 
    /**
@@ -77,52 +167,108 @@ public class RecoveryMgr {
     * @param offset the offset of the value in the page
     * @param newval the value to be written
     */
-   public int setString(Buffer buff, int offset, String newval) {
+   public long setString(Buffer buff, int offset, String newval) {
       String oldval = buff.contents().getString(offset);
       BlockId blk = buff.block();
-      return SetStringRecord.writeToLog(lm, txnum, blk, offset, oldval);
+      lastLSN = SetStringRecord.writeToLog(lm, txnum, lastLSN, blk, offset, oldval, newval);
+      return lastLSN;
    }
 
    /**
-    * Rollback the transaction, by iterating
-    * through the log records until it finds 
-    * the transaction's START record,
-    * calling undo() for each of the transaction's
-    * log records.
+    * Rollback the transaction, by following the chain
+    * of its log records backwards from the most recent one
+    * until it reaches the transaction's START record,
+    * calling undo() for each record along the way.
+    * Only the transaction's own records are read.
     */
    private void doRollback() {
-      Iterator<byte[]> iter = lm.iterator();
-      while (iter.hasNext()) {
-         byte[] bytes = iter.next();
-         LogRecord rec = LogRecord.createLogRecord(bytes); 
-         if (rec.txNumber() == txnum) {
-            if (rec.op() == START)
-               return;
-            rec.undo(tx);
-         }
+      long lsn = lastLSN;
+      while (lsn >= 0) {
+         LogRecord rec = LogRecord.createLogRecord(lm.read(lsn));
+         if (rec.op() == START)
+            return;
+         rec.undo(tx);
+         lsn = rec.prevLSN();
       }
    }
 
    /**
-    * Do a complete database recovery.
-    * The method iterates through the log records.
-    * Whenever it finds a log record for an unfinished
-    * transaction, it calls undo() on that record.
-    * The method stops when it encounters a CHECKPOINT record
-    * or the end of the log.
+    * Do a complete database recovery, in three passes
+    * over the log records after the last CHECKPOINT record,
+    * or back to the redo point of the last complete
+    * nonquiescent checkpoint, whichever is later.
+    * The analysis pass reads the records backwards,
+    * finds the checkpoint and its redo point,
+    * and finds the committed and rolled back transactions.
+    * The redo pass calls redo() on the records in log order,
+    * repeating history, except for the records of
+    * rolled back transactions, whose restored pages were
+    * flushed before their ROLLBACK records were written.
+    * The undo pass then calls undo() backwards on the records
+    * of the unfinished transactions.
+    * The records of temporary files are skipped by both passes,
+    * since those files are deleted at startup.
     */
    private void doRecover() {
-      Collection<Integer> finishedTxs = new ArrayList<>();
-      Iterator<byte[]> iter = lm.iterator();
+      List<LogRecord> recs = new ArrayList<>();
+      Set<Integer> committedTxs = new HashSet<>();
+      Set<Integer> rolledBackTxs = new HashSet<>();
+      NQCheckpointRecord ckpt = null;
+      Map<Integer,Long> ckptTxs = new HashMap<>();
+      Map<BlockId,Long> ckptPages = new HashMap<>();
+      long redopoint = -1;
+      LogIterator iter = lm.iterator();
       while (iter.hasNext()) {
          byte[] bytes = iter.next();
          LogRecord rec = LogRecord.createLogRecord(bytes);
+         long lsn = iter.lsn();
          if (rec.op() == CHECKPOINT)
-            return;
-         if (rec.op() == COMMIT || rec.op() == ROLLBACK)
-            finishedTxs.add(rec.txNumber());
-         else if (!finishedTxs.contains(rec.txNumber()))
+            break;
+         if (rec.op() == NQCKPT) {
+            NQCheckpointRecord c = (NQCheckpointRecord) rec;
+            if (ckpt == null && c.isLast())
+               ckpt = c;
+            if (ckpt != null && c.beginLSN() == ckpt.beginLSN()) {
+               ckptTxs.putAll(c.activeTxs());
+               ckptPages.putAll(c.dirtyPages());
+            }
+            continue;
+         }
+         // every record of the checkpoint lies after its begin LSN
+         if (ckpt != null && redopoint < 0 && lsn <= ckpt.beginLSN())
+            redopoint = redoPoint(ckpt.beginLSN(), ckptTxs, ckptPages);
+         if (redopoint >= 0 && lsn < redopoint)
+            break;
+         if (rec.op() == COMMIT)
+            committedTxs.add(rec.txNumber());
+         else if (rec.op() == ROLLBACK)
+            rolledBackTxs.add(rec.txNumber());
+         BlockId blk = rec.block();
+         if (blk == null || !fm.isTemp(blk.fileName()))
+            recs.add(rec);
+      }
+      for (int i=recs.size()-1; i>=0; i--) {
+         LogRecord rec = recs.get(i);
+         if (!rolledBackTxs.contains(rec.txNumber()))
+            rec.redo(tx);
+      }
+      for (LogRecord rec : recs) {
+         int t = rec.txNumber();
+         if (!committedTxs.contains(t) && !rolledBackTxs.contains(t))
             rec.undo(tx);
       }
    }
+
+   /**
+    * Returns the earliest LSN from which the log must be read
+    * to recover from the specified checkpoint.
+    */
+   private static long redoPoint(long beginlsn, Map<Integer,Long> txs, Map<BlockId,Long> dirtypages) {
+      long redopoint = beginlsn;
+      for (long lsn : txs.values())
+         redopoint = Math.min(redopoint, lsn);
+      for (long lsn : dirtypages.values())
+         redopoint = Math.min(redopoint, lsn);
+      return redopoint;
+   }
 }
@@ -9,7 +9,7 @@ public class RecoveryTest {
    public static FileMgr fm;
    public static BufferMgr bm;
    private static SimpleDB db;
-   private static BlockId blk0, blk1;
+   private static BlockId blk0, blk1, blk2;
 
    public static void main(String[] args) throws Exception {
       db = new SimpleDB("recoverytest", 400, 8);
@@ -17,10 +17,12 @@ public class RecoveryTest {
       bm = db.bufferMgr();
       blk0 = new BlockId("testfile", 0);
       blk1 = new BlockId("testfile", 1);
+      blk2 = new BlockId("testfile", 2);
 
       if (fm.length("testfile") == 0) {
          initialize();
          modify();
+         modifyNoForce();
       }
       else {
          recover();
@@ -68,10 +70,32 @@ public class RecoveryTest {
       // so all its changes should be undone during recovery.
    }
 
+   private static void modifyNoForce() {
+      bm.setNoForce(true);
+      Transaction tx5 = db.newTx();
+      tx5.append("testfile");
+      BlockId tempblk = tx5.append("temp1");
+      tx5.pin(blk2);
+      tx5.pin(tempblk);
+      int pos = 0;
+      for (int i=0; i<6; i++) {
+         tx5.setInt(blk2, pos, pos+200, true);
+         tx5.setInt(tempblk, pos, pos+300, true);
+         pos += Integer.BYTES;
+      }
+      tx5.commit();
+      // The system crashes before tx5's buffers are written,
+      // so its changes to testfile should be redone during recovery,
+      // and the temporary file, which is deleted at startup,
+      // should not be recreated.
+      Runtime.getRuntime().halt(0);
+   }
+
    private static void recover() {
       Transaction tx = db.newTx();
       tx.recover();
       printValues("After recovery:");
+      printNoForceValues("After recovery of the no-force commit:");
    }
 
    // Print the values that made it to disk.
@@ -91,4 +115,17 @@ public class RecoveryTest {
       System.out.print(p1.getString(30) + " ");
       System.out.println(); 
    }
+
+   private static void printNoForceValues(String msg) {
+      System.out.println(msg);
+      Page p2 = new Page(fm.blockSize());
+      fm.read(blk2, p2);
+      int pos = 0;
+      for (int i=0; i<6; i++) {
+         System.out.print(p2.getInt(pos) + " ");
+         pos += Integer.BYTES;
+      }
+      System.out.println();
+      System.out.println("temp1 blocks: " + fm.length("temp1"));
+   }
 }
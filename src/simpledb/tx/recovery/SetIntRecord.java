@@ -5,7 +5,8 @@ import simpledb.log.LogMgr;
 import simpledb.tx.Transaction;
 
 public class SetIntRecord implements LogRecord {
-   private int txnum, offset, val;
+   private int txnum, offset, val, newval;
+   private long prevlsn;
    private BlockId blk;
 
    /**
@@ -15,7 +16,9 @@ public class SetIntRecord implements LogRecord {
    public SetIntRecord(Page p) {
       int tpos = Integer.BYTES;
       txnum = p.getInt(tpos);
-      int fpos = tpos + Integer.BYTES;
+      int ppos = tpos + Integer.BYTES;
+      prevlsn = p.getLong(ppos);
+      int fpos = ppos + Long.BYTES;
       String filename = p.getString(fpos);
       int bpos = fpos + Page.maxLength(filename.length());
       int blknum = p.getInt(bpos);
@@ -24,6 +27,8 @@ public class SetIntRecord implements LogRecord {
       offset = p.getInt(opos);
       int vpos = opos + Integer.BYTES;      
       val = p.getInt(vpos);
+      int npos = vpos + Integer.BYTES;
+      newval = p.getInt(npos);
    }
 
    public int op() {
@@ -34,8 +39,16 @@ public class SetIntRecord implements LogRecord {
       return txnum;
    }
 
+   public long prevLSN() {
+      return prevlsn;
+   }
+
+   public BlockId block() {
+      return blk;
+   }
+
    public String toString() {
-      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETINT " + txnum + " " + blk + " " + offset + " " + val + " " + newval + ">";
    }
 
    /**
@@ -51,28 +64,44 @@ public class SetIntRecord implements LogRecord {
       tx.unpin(blk);
    }
 
+   /**
+    * Replace the specified data value with the new value
+    * saved in the log record.
+    * @see simpledb.tx.recovery.LogRecord#redo(Transaction)
+    */
+   public void redo(Transaction tx) {
+      tx.pin(blk);
+      tx.setInt(blk, offset, newval, false); // don't log the redo!
+      tx.unpin(blk);
+   }
+
    /**
     * A static method to write a setInt record to the log.
     * This log record contains the SETINT operator,
-    * followed by the transaction id, the filename, number,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous log record, the filename, number,
     * and offset of the modified block, and the previous
-    * integer value at that offset.
+    * and new integer values at that offset.
     * @return the LSN of the last log value
     */
-   public static int writeToLog(LogMgr lm, int txnum, BlockId blk, int offset, int val) {
+   public static long writeToLog(LogMgr lm, int txnum, long prevlsn, BlockId blk, int offset, int val, int newval) {
       int tpos = Integer.BYTES;
-      int fpos = tpos + Integer.BYTES;
+      int ppos = tpos + Integer.BYTES;
+      int fpos = ppos + Long.BYTES;
       int bpos = fpos + Page.maxLength(blk.fileName().length());
       int opos = bpos + Integer.BYTES;
       int vpos = opos + Integer.BYTES;
-      byte[] rec = new byte[vpos + Integer.BYTES];
+      int npos = vpos + Integer.BYTES;
+      byte[] rec = new byte[npos + Integer.BYTES];
       Page p = new Page(rec);
       p.setInt(0, SETINT);
       p.setInt(tpos, txnum);
+      p.setLong(ppos, prevlsn);
       p.setString(fpos, blk.fileName());
       p.setInt(bpos, blk.number());
       p.setInt(opos, offset);
       p.setInt(vpos, val);
+      p.setInt(npos, newval);
       return lm.append(rec);
    }
 }
@@ -6,7 +6,8 @@ import simpledb.tx.Transaction;
 
 public class SetStringRecord implements LogRecord {
    private int txnum, offset;
-   private String val;
+   private String val, newval;
+   private long prevlsn;
    private BlockId blk;
 
    /**
@@ -16,7 +17,9 @@ public class SetStringRecord implements LogRecord {
    public SetStringRecord(Page p) {
       int tpos = Integer.BYTES;
       txnum = p.getInt(tpos);
-      int fpos = tpos + Integer.BYTES;
+      int ppos = tpos + Integer.BYTES;
+      prevlsn = p.getLong(ppos);
+      int fpos = ppos + Long.BYTES;
       String filename = p.getString(fpos);
       int bpos = fpos + Page.maxLength(filename.length());
       int blknum = p.getInt(bpos);
@@ -25,6 +28,8 @@ public class SetStringRecord implements LogRecord {
       offset = p.getInt(opos);
       int vpos = opos + Integer.BYTES;      
       val = p.getString(vpos);
+      int npos = vpos + Page.maxLength(val.length());
+      newval = p.getString(npos);
    }
 
    public int op() {
@@ -35,8 +40,16 @@ public class SetStringRecord implements LogRecord {
       return txnum;
    }
 
+   public long prevLSN() {
+      return prevlsn;
+   }
+
+   public BlockId block() {
+      return blk;
+   }
+
    public String toString() {
-      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + ">";
+      return "<SETSTRING " + txnum + " " + blk + " " + offset + " " + val + " " + newval + ">";
    }
 
    /**
@@ -52,29 +65,45 @@ public class SetStringRecord implements LogRecord {
       tx.unpin(blk);
    }
 
+   /**
+    * Replace the specified data value with the new value
+    * saved in the log record.
+    * @see simpledb.tx.recovery.LogRecord#redo(Transaction)
+    */
+   public void redo(Transaction tx) {
+      tx.pin(blk);
+      tx.setString(blk, offset, newval, false); // don't log the redo!
+      tx.unpin(blk);
+   }
+
    /**
     * A static method to write a setInt record to the log.
     * This log record contains the SETINT operator,
-    * followed by the transaction id, the filename, number,
+    * followed by the transaction id, the LSN of the
+    * transaction's previous log record, the filename, number,
     * and offset of the modified block, and the previous
-    * integer value at that offset.
+    * and new string values at that offset.
     * @return the LSN of the last log value
     */
-   public static int writeToLog(LogMgr lm, int txnum, BlockId blk, int offset, String val) {
+   public static long writeToLog(LogMgr lm, int txnum, long prevlsn, BlockId blk, int offset, String val, String newval) {
       int tpos = Integer.BYTES;
-      int fpos = tpos + Integer.BYTES;
+      int ppos = tpos + Integer.BYTES;
+      int fpos = ppos + Long.BYTES;
       int bpos = fpos + Page.maxLength(blk.fileName().length());
       int opos = bpos + Integer.BYTES;
       int vpos = opos + Integer.BYTES;
-      int reclen = vpos + Page.maxLength(val.length());
+      int npos = vpos + Page.maxLength(val.length());
+      int reclen = npos + Page.maxLength(newval.length());
       byte[] rec = new byte[reclen];
       Page p = new Page(rec);
       p.setInt(0, SETSTRING);
       p.setInt(tpos, txnum);
+      p.setLong(ppos, prevlsn);
       p.setString(fpos, blk.fileName());
       p.setInt(bpos, blk.number());
       p.setInt(opos, offset);
       p.setString(vpos, val);
+      p.setString(npos, newval);
       return lm.append(rec);
    }
 }
\ No newline at end of file